@@ -27,12 +27,10 @@ package com.github.akinaru.bleremote.activity;
 import android.Manifest;
 import android.app.Dialog;
 import android.app.ProgressDialog;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
@@ -44,6 +42,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.DisplayMetrics;
@@ -62,8 +61,9 @@ import android.widget.Toast;
 import com.android.camera.CropImageIntentBuilder;
 import com.github.akinaru.bleremote.R;
 import com.github.akinaru.bleremote.adapter.BitmapAdapter;
-import com.github.akinaru.bleremote.bluetooth.events.BluetoothEvents;
+import com.github.akinaru.bleremote.bluetooth.connection.ConnectionState;
 import com.github.akinaru.bleremote.bluetooth.events.BluetoothObject;
+import com.github.akinaru.bleremote.bluetooth.listener.IBluetoothEventListener;
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
 import com.github.akinaru.bleremote.inter.IBleDisplayRemoteDevice;
 import com.github.akinaru.bleremote.inter.IDirectionPadListener;
@@ -89,6 +89,7 @@ import java.util.HashMap;
 import java.util.TimeZone;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
 
 import uz.shift.colorpicker.LineColorPicker;
 import uz.shift.colorpicker.OnColorChangedListener;
@@ -135,6 +136,55 @@ public class DeviceActivity extends BaseActivity {
     private Timer mTimer;
     private boolean mShouldReconnect = false;
     private Dialog mProgressDialog;
+
+    /**
+     * last encoded bitmap sent and its size before encoding, sent again if its upload can be resumed after reconnection
+     */
+    private byte[] mLastUpload;
+    private int mLastUploadSize;
+
+    /**
+     * time given to the last device to be connected before falling back to scan (ms). A reconnection within the same
+     * service uses a background connection (see IBluetoothDeviceConn#reconnect) which may be slow : scan early
+     */
+    private final static int WARM_CONNECT_TIMEOUT = 2000;
+
+    /**
+     * time given to the last device to be connected and initialized before falling back to scan (ms)
+     */
+    private final static int WARM_INIT_TIMEOUT = 5000;
+
+    /**
+     * date of the direct connection request to the last device
+     */
+    private long mWarmConnectDate;
+
+    /**
+     * fall back to scan if direct connection to the last device doesn't succeed
+     */
+    private Runnable mWarmConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mService == null) {
+                return;
+            }
+            long remaining = mWarmConnectDate + WARM_INIT_TIMEOUT - SystemClock.elapsedRealtime();
+
+            if (mBtDevice != null && remaining > 0 && mService.getConnectionState(mBtDevice.getDeviceAddress()) == ConnectionState.DISCOVERING) {
+                //link is up, device is being initialized
+                mHandler.postDelayed(this, remaining);
+                return;
+            }
+            Log.v(TAG, "last device not reachable, scanning");
+
+            //pending connection must be CLOSED before scanning : a scan selection would find it still busy
+            if (mBtDevice != null) {
+                mService.cancelConnection(mBtDevice.getDeviceAddress());
+            }
+            mService.clearScanningList();
+            triggerNewScan();
+        }
+    };
     private final static int REQUEST_PERMISSION_COARSE_LOCATION = 1;
 
     protected Bitmap flip(Bitmap d) {
@@ -216,6 +266,80 @@ public class DeviceActivity extends BaseActivity {
         }, 0, 1000);
     }
 
+    /**
+     * send an encoded bitmap to the device showing upload progress
+     *
+     * @param uncompressedSize size of the bitmap before encoding
+     * @param data             encoded bitmap
+     */
+    private void uploadBitmap(int uncompressedSize, byte[] data) {
+
+        mLastUpload = data;
+        mLastUploadSize = uncompressedSize;
+
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+        }
+        generateDialog(uncompressedSize, data.length);
+
+        mDisplayDevice.sendBitmapEncodedBitmask(data, new IProgressListener() {
+            @Override
+            public void onProgress(final int progress) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mProgressionTv != null && mProgressBar != null) {
+                            mProgressionTv.setText(progress + " %");
+                            mProgressBar.setProgress(progress);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFinishUpload() {
+                if (mButton != null) {
+                    if (mTimer != null) {
+                        mTimer.cancel();
+                        mTimer.purge();
+                    }
+                    mTimeCount = 0;
+
+                    mTimer = new Timer();
+                    mTimer.scheduleAtFixedRate(new TimerTask() {
+                        @Override
+                        public void run() {
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (mCompleteTv != null) {
+                                        mCompleteTv.setText(formatSeconds(mTimeCount));
+                                    }
+                                    mTimeCount++;
+                                }
+                            });
+                        }
+                    }, 0, 1000);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mButton.setText("OK");
+                    }
+                });
+                if (mTimer != null) {
+                    mTimer.cancel();
+                    mTimer.purge();
+                }
+                mTimeCount = 0;
+            }
+        });
+    }
+
     private String formatSeconds(int seconds) {
         Date d = new Date(seconds * 1000L);
         SimpleDateFormat df = new SimpleDateFormat("HH:mm:ss"); // HH for 0-23
@@ -345,64 +469,7 @@ public class DeviceActivity extends BaseActivity {
                     e.printStackTrace();
                 }
 
-                generateDialog(bitmapData.length, data.length);
-
-                mDisplayDevice.sendBitmapEncodedBitmask(data, new IProgressListener() {
-                    @Override
-                    public void onProgress(final int progress) {
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (mProgressionTv != null && mProgressBar != null) {
-                                    mProgressionTv.setText(progress + " %");
-                                    mProgressBar.setProgress(progress);
-                                }
-                            }
-                        });
-                    }
-
-                    @Override
-                    public void onFinishUpload() {
-                        if (mButton != null) {
-                            if (mTimer != null) {
-                                mTimer.cancel();
-                                mTimer.purge();
-                            }
-                            mTimeCount = 0;
-
-                            mTimer = new Timer();
-                            mTimer.scheduleAtFixedRate(new TimerTask() {
-                                @Override
-                                public void run() {
-                                    runOnUiThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            if (mCompleteTv != null) {
-                                                mCompleteTv.setText(formatSeconds(mTimeCount));
-                                            }
-                                            mTimeCount++;
-                                        }
-                                    });
-                                }
-                            }, 0, 1000);
-                        }
-                    }
-
-                    @Override
-                    public void onComplete() {
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mButton.setText("OK");
-                            }
-                        });
-                        if (mTimer != null) {
-                            mTimer.cancel();
-                            mTimer.purge();
-                        }
-                        mTimeCount = 0;
-                    }
-                });
+                uploadBitmap(bitmapData.length, data);
 
             }
         }, new IViewHolderLongClickListener() {
@@ -606,9 +673,6 @@ public class DeviceActivity extends BaseActivity {
                 }
             }
         });
-        //register bluetooth event broadcast receiver
-        registerReceiver(mBluetoothReceiver, makeGattUpdateIntentFilter());
-
         if (Build.VERSION.SDK_INT >= 23) {
             if (checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
                 requestPermissions(new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, REQUEST_PERMISSION_COARSE_LOCATION);
@@ -653,8 +717,7 @@ public class DeviceActivity extends BaseActivity {
         if (!mExitOnBrowse && mBound) {
             createProgressConnect();
             if (mService != null) {
-                mService.clearScanningList();
-                triggerNewScan();
+                connectOrScan();
             }
         }
 
@@ -679,6 +742,8 @@ public class DeviceActivity extends BaseActivity {
 
         mShouldReconnect = false;
 
+        mHandler.removeCallbacks(mWarmConnectTimeout);
+
         if (!mExitOnBrowse) {
             if (mService != null) {
                 mService.disconnectall();
@@ -693,11 +758,35 @@ public class DeviceActivity extends BaseActivity {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        unregisterReceiver(mBluetoothReceiver);
+        if (mService != null) {
+            mService.unregisterEventListener(mBluetoothListener);
+        }
         unbindService(mServiceConnection);
         mBound = false;
     }
 
+    /**
+     * connect directly to the last device if there is one, scan for the device otherwise
+     */
+    private void connectOrScan() {
+
+        mService.clearScanningList();
+
+        String address = mService.getLastDeviceAddress();
+
+        if (address != null && mService.connectLastDevice()) {
+            mBtDevice = new BluetoothObject(address, mService.getLastDeviceName(), -1);
+            if (mConnectingProgressDialog != null) {
+                mConnectingProgressDialog.setMessage(getResources().getString(R.string.dialog_connecting));
+            }
+            mWarmConnectDate = SystemClock.elapsedRealtime();
+            mHandler.removeCallbacks(mWarmConnectTimeout);
+            mHandler.postDelayed(mWarmConnectTimeout, WARM_CONNECT_TIMEOUT);
+        } else {
+            triggerNewScan();
+        }
+    }
+
     private void createProgressConnect() {
         if (mConnectingProgressDialog != null) {
             mConnectingProgressDialog.cancel();
@@ -816,11 +905,12 @@ public class DeviceActivity extends BaseActivity {
 
             Log.v(TAG, "connected to service");
             mService = ((BleDisplayRemoteService.LocalBinder) service).getService();
-            mService.clearScanningList();
+            //register bluetooth event listener
+            mService.registerEventListener(mBluetoothListener, mUiExecutor);
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    triggerNewScan();
+                    connectOrScan();
                 }
             });
         }
@@ -831,238 +921,275 @@ public class DeviceActivity extends BaseActivity {
     };
 
     /**
-     * broadcast receiver to receive bluetooth events
+     * executor running bluetooth event listener on UI thread
      */
-    private final BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
+    private final Executor mUiExecutor = new Executor() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
 
-            final String action = intent.getAction();
+    /**
+     * listener receiving bluetooth events
+     */
+    private final IBluetoothEventListener mBluetoothListener = new IBluetoothEventListener() {
 
-            if (BluetoothEvents.BT_EVENT_DEVICE_DISCONNECTED.equals(action)) {
+        @Override
+        public void onDeviceDisconnected(BluetoothObject device) {
 
-                Log.v(TAG, "Device disconnected");
+            Log.v(TAG, "Device disconnected");
 
-                if (mShouldReconnect) {
+            if (mShouldReconnect) {
 
-                    createProgressConnect();
-                    mService.clearScanningList();
-                    runOnUiThread(new Runnable() {
+                createProgressConnect();
+                mService.clearScanningList();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        triggerNewScan();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onDeviceConnected(BluetoothObject device) {
+
+            Log.v(TAG, "Device connected");
+            mHandler.removeCallbacks(mWarmConnectTimeout);
+            Toast.makeText(DeviceActivity.this, getResources().getString(R.string.toast_device_connected), Toast.LENGTH_SHORT).show();
+            mConnectingProgressDialog.cancel();
+            mConnectingProgressDialog.dismiss();
+            if (mBtDevice != null && mService.getConnectionList().get(mBtDevice.getDeviceAddress()) != null) {
+
+                if (mService.getConnectionList().get(mBtDevice.getDeviceAddress()).getDevice() instanceof IBleDisplayRemoteDevice) {
+
+                    mDisplayDevice = (IBleDisplayRemoteDevice) mService.getConnectionList().get(mBtDevice.getDeviceAddress()).getDevice();
+
+                    //last upload has been interrupted by a disconnection : send it again from the last acknowledged window
+                    if (mLastUpload != null && mDisplayDevice.hasResumableUpload(mLastUpload)) {
+                        Log.v(TAG, "resuming interrupted upload");
+                        uploadBitmap(mLastUploadSize, mLastUpload);
+                    }
+
+                    mDisplayDevice.addDirectionPadListener(new IDirectionPadListener() {
                         @Override
-                        public void run() {
-                            triggerNewScan();
+                        public void onDPadStateChanged(DpadState state) {
+                            Log.v(TAG, "dpad state change : " + state.toString());
+
+                            switch (state) {
+                                case RIGHT:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            dpadMap.get(DpadState.RIGHT).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case LEFT:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            dpadMap.get(DpadState.LEFT).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case UP:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            dpadMap.get(DpadState.UP).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case DOWN:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            dpadMap.get(DpadState.DOWN).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case SELECT:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            dpadMap.get(DpadState.SELECT).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case BUTTON_VOICE:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            buttonMap.get(DpadState.BUTTON_VOICE).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case BUTTON_HOME:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            buttonMap.get(DpadState.BUTTON_HOME).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case BUTTON_BACK:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            buttonMap.get(DpadState.BUTTON_BACK).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case BUTTON_PLAY_PAUSE:
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            buttonMap.get(DpadState.BUTTON_PLAY_PAUSE).setPressed(true);
+                                        }
+                                    });
+                                    break;
+                                case NONE:
+                                    switch (dpadState) {
+                                        case UP:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    dpadMap.get(DpadState.UP).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case DOWN:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    dpadMap.get(DpadState.DOWN).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case LEFT:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    dpadMap.get(DpadState.LEFT).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case RIGHT:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    dpadMap.get(DpadState.RIGHT).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case SELECT:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    dpadMap.get(DpadState.SELECT).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case BUTTON_VOICE:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    buttonMap.get(DpadState.BUTTON_VOICE).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case BUTTON_HOME:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    buttonMap.get(DpadState.BUTTON_HOME).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case BUTTON_BACK:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    buttonMap.get(DpadState.BUTTON_BACK).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                        case BUTTON_PLAY_PAUSE:
+                                            runOnUiThread(new Runnable() {
+                                                @Override
+                                                public void run() {
+                                                    buttonMap.get(DpadState.BUTTON_PLAY_PAUSE).setPressed(false);
+                                                }
+                                            });
+                                            break;
+                                    }
+                                    break;
+                            }
+                            dpadState = state;
                         }
                     });
                 }
-            } else if (BluetoothEvents.BT_EVENT_DEVICE_CONNECTED.equals(action)) {
-                Log.v(TAG, "Device connected");
-                Toast.makeText(DeviceActivity.this, getResources().getString(R.string.toast_device_connected), Toast.LENGTH_SHORT).show();
-                mConnectingProgressDialog.cancel();
-                mConnectingProgressDialog.dismiss();
-                if (mBtDevice != null && mService.getConnectionList().get(mBtDevice.getDeviceAddress()) != null) {
+            }
+        }
 
-                    if (mService.getConnectionList().get(mBtDevice.getDeviceAddress()).getDevice() instanceof IBleDisplayRemoteDevice) {
+        @Override
+        public void onScanStart() {
+            Log.v(TAG, "Scan has started");
+        }
 
-                        mDisplayDevice = (IBleDisplayRemoteDevice) mService.getConnectionList().get(mBtDevice.getDeviceAddress()).getDevice();
+        @Override
+        public void onScanEnd() {
+            Log.v(TAG, "Scan has ended");
+        }
 
-                        mDisplayDevice.addDirectionPadListener(new IDirectionPadListener() {
-                            @Override
-                            public void onDPadStateChanged(DpadState state) {
-                                Log.v(TAG, "dpad state change : " + state.toString());
-
-                                switch (state) {
-                                    case RIGHT:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                dpadMap.get(DpadState.RIGHT).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case LEFT:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                dpadMap.get(DpadState.LEFT).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case UP:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                dpadMap.get(DpadState.UP).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case DOWN:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                dpadMap.get(DpadState.DOWN).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case SELECT:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                dpadMap.get(DpadState.SELECT).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case BUTTON_VOICE:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                buttonMap.get(DpadState.BUTTON_VOICE).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case BUTTON_HOME:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                buttonMap.get(DpadState.BUTTON_HOME).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case BUTTON_BACK:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                buttonMap.get(DpadState.BUTTON_BACK).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case BUTTON_PLAY_PAUSE:
-                                        runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                buttonMap.get(DpadState.BUTTON_PLAY_PAUSE).setPressed(true);
-                                            }
-                                        });
-                                        break;
-                                    case NONE:
-                                        switch (dpadState) {
-                                            case UP:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        dpadMap.get(DpadState.UP).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case DOWN:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        dpadMap.get(DpadState.DOWN).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case LEFT:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        dpadMap.get(DpadState.LEFT).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case RIGHT:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        dpadMap.get(DpadState.RIGHT).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case SELECT:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        dpadMap.get(DpadState.SELECT).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case BUTTON_VOICE:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        buttonMap.get(DpadState.BUTTON_VOICE).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case BUTTON_HOME:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        buttonMap.get(DpadState.BUTTON_HOME).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case BUTTON_BACK:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        buttonMap.get(DpadState.BUTTON_BACK).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                            case BUTTON_PLAY_PAUSE:
-                                                runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        buttonMap.get(DpadState.BUTTON_PLAY_PAUSE).setPressed(false);
-                                                    }
-                                                });
-                                                break;
-                                        }
-                                        break;
-                                }
-                                dpadState = state;
-                            }
-                        });
-                    }
-                }
-            } else if (BluetoothEvents.BT_EVENT_SCAN_START.equals(action)) {
-                Log.v(TAG, "Scan has started");
-            } else if (BluetoothEvents.BT_EVENT_SCAN_END.equals(action)) {
-                Log.v(TAG, "Scan has ended");
-            } else if (BluetoothEvents.BT_EVENT_DEVICE_DISCOVERED.equals(action)) {
-                Log.v(TAG, "New device has been discovered");
-                final BluetoothObject btDeviceTmp = BluetoothObject.parseArrayList(intent);
-
-                if (btDeviceTmp.getDeviceName().equals(DEVICE_NAME)) {
-                    Log.v(TAG, "found new device");
-                    mConnectingProgressDialog.setMessage(getResources().getString(R.string.dialog_connecting));
-                    mService.stopScan();
-                    mBtDevice = btDeviceTmp;
-                    mService.connect(mBtDevice.getDeviceAddress());
-                }
+        @Override
+        public void onDeviceDiscovered(BluetoothObject device) {
+            Log.v(TAG, "New device has been discovered : " + device.getDeviceAddress() + " (" + device.getRssi() + " dBm)");
+        }
+
+        @Override
+        public void onDeviceSelected(BluetoothObject device) {
+
+            Log.v(TAG, "Device has been selected");
+
+            if (device.getDeviceName().equals(DEVICE_NAME)) {
+                Log.v(TAG, "found new device");
+                mConnectingProgressDialog.setMessage(getResources().getString(R.string.dialog_connecting));
+                mService.stopScan();
+                mBtDevice = device;
+                mService.connect(mBtDevice.getDeviceAddress());
             }
         }
     };
 
-    /**
-     * add filter to intent to receive notification from bluetooth service
-     *
-     * @return intent filter
-     */
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothEvents.BT_EVENT_SCAN_START);
-        intentFilter.addAction(BluetoothEvents.BT_EVENT_SCAN_END);
-        intentFilter.addAction(BluetoothEvents.BT_EVENT_DEVICE_DISCOVERED);
-        intentFilter.addAction(BluetoothEvents.BT_EVENT_DEVICE_CONNECTED);
-        intentFilter.addAction(BluetoothEvents.BT_EVENT_DEVICE_DISCONNECTED);
-        return intentFilter;
-    }
-
     @Override
     public void disconnect() {
         if (mService != null) {
             mService.disconnectall();
         }
     }
+
+    @Override
+    public void dumpTrace() {
+
+        if (mService == null || mBtDevice == null) {
+            Toast.makeText(this, getResources().getString(R.string.toast_trace_no_device), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            File file = mService.dumpTrace(mBtDevice.getDeviceAddress());
+            if (file != null) {
+                Log.v(TAG, "trace written to " + file.getAbsolutePath());
+                Toast.makeText(this, getResources().getString(R.string.toast_trace_dumped, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(this, getResources().getString(R.string.toast_trace_no_device), Toast.LENGTH_SHORT).show();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "trace dump failure", e);
+            Toast.makeText(this, getResources().getString(R.string.toast_trace_failure), Toast.LENGTH_SHORT).show();
+        }
+    }
 }
\ No newline at end of file
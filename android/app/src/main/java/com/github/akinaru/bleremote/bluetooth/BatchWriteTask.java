@@ -0,0 +1,165 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceEvent;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
+
+import java.util.UUID;
+
+/**
+ * Window of a payload written as successive chunks (write without response) by a single GATT task. Chunks are written
+ * in a loop within one run : the task only gives the queue back to a higher priority task waiting behind it, and is
+ * deferred (still heading the queue) when no write credit is available. It resumes from the chunk it stopped at
+ *
+ * @author Bertrand Martel
+ */
+public abstract class BatchWriteTask extends GattTask {
+
+    private final byte[] data;
+
+    private final int end;
+
+    private final int chunkSize;
+
+    /**
+     * sequence number written as a 1 byte header before the first chunk payload (-1 for no header)
+     */
+    private final int firstSequence;
+
+    private final WriteFlowControl flowControl;
+
+    private final ChunkBufferPool bufferPool;
+
+    private final TraceRing traceRing;
+
+    private final IBatchListener listener;
+
+    /**
+     * number of chunks written so far
+     */
+    private int index = 0;
+
+    /**
+     * offset of the next chunk in the payload
+     */
+    private int chunkOffset;
+
+    /**
+     * @param gatt          gatt connection
+     * @param characUuid    characteristic uuid
+     * @param data          payload
+     * @param offset        offset of the window in the payload
+     * @param length        window length
+     * @param chunkSize     max payload length of a single write
+     * @param firstSequence sequence number of the first chunk (-1 for no header)
+     * @param flowControl   write credits of the connection
+     * @param bufferPool    chunk buffers of the connection
+     * @param traceRing     GATT events trace of the connection
+     * @param listener      batch listener
+     */
+    public BatchWriteTask(BluetoothGatt gatt, UUID characUuid, byte[] data, int offset, int length, int chunkSize,
+                          int firstSequence, WriteFlowControl flowControl, ChunkBufferPool bufferPool,
+                          TraceRing traceRing, IBatchListener listener) {
+        super(gatt, characUuid, data, null);
+        this.data = data;
+        this.chunkOffset = offset;
+        this.end = offset + length;
+        this.chunkSize = chunkSize;
+        this.firstSequence = firstSequence;
+        this.flowControl = flowControl;
+        this.bufferPool = bufferPool;
+        this.traceRing = traceRing;
+        this.listener = listener;
+    }
+
+    /**
+     * called at the beginning of each run before writing chunks
+     *
+     * @return false if the characteristic can't be written anymore
+     */
+    protected abstract boolean prepare();
+
+    /**
+     * issue the write without response of a chunk
+     *
+     * @param chunk chunk value
+     * @return false if the stack refused the write
+     */
+    protected abstract boolean issueWrite(byte[] chunk);
+
+    @Override
+    public void run() {
+
+        if (!prepare()) {
+            listener.onBatchFailure(index);
+            return;
+        }
+        int headerLength = (firstSequence >= 0) ? 1 : 0;
+
+        while (chunkOffset < end) {
+
+            if (hasHigherPriorityPending()) {
+                //let interactive commands through, this task is run again before any task queued after it
+                resubmit();
+                return;
+            }
+            if (!flowControl.acquireOrDefer(this)) {
+                return;
+            }
+            int chunkLength = Math.min(chunkSize, end - chunkOffset);
+
+            byte[] chunk = bufferPool.get(headerLength + chunkLength);
+            if (headerLength != 0) {
+                chunk[0] = (byte) (firstSequence + index);
+            }
+            System.arraycopy(data, chunkOffset, chunk, headerLength, chunkLength);
+
+            boolean success = issueWrite(chunk);
+
+            if (!success) {
+                if (flowControl.onWriteRefused(this)) {
+                    //retried on next write callback
+                    return;
+                }
+                traceRing.record(TraceEvent.GATT_WRITE_CHUNK, index, chunkLength, 0);
+                listener.onBatchFailure(index);
+                return;
+            }
+            resetAttempt();
+            traceRing.record(TraceEvent.GATT_WRITE_CHUNK, index, chunkLength, 1);
+
+            index++;
+
+            if (!listener.onChunkWritten(index - 1, chunkOffset, chunkLength)) {
+                break;
+            }
+            chunkOffset += chunkLength;
+        }
+        listener.onBatchComplete(index);
+    }
+}
@@ -31,32 +31,36 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
-import android.content.Intent;
 import android.os.Build;
+import android.os.ParcelUuid;
 import android.util.Log;
 
 import com.github.akinaru.bleremote.bluetooth.connection.BluetoothDeviceConn;
+import com.github.akinaru.bleremote.bluetooth.connection.ConnectionState;
 import com.github.akinaru.bleremote.bluetooth.connection.IBluetoothDeviceConn;
-import com.github.akinaru.bleremote.bluetooth.events.BluetoothEvents;
+import com.github.akinaru.bleremote.bluetooth.connection.KnownDeviceStore;
+import com.github.akinaru.bleremote.bluetooth.device.BleDisplayDevice;
+import com.github.akinaru.bleremote.bluetooth.events.BluetoothEventBus;
+import com.github.akinaru.bleremote.bluetooth.events.BluetoothObject;
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceEvent;
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
-import com.github.akinaru.bleremote.constant.JsonConstants;
-import com.github.akinaru.bleremote.utils.ManualResetEvent;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.github.akinaru.bleremote.bluetooth.listener.IReadListener;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -70,47 +74,79 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
 
     private final static String TAG = BluetoothCustomManager.class.getName();
 
-    // set init pool size
-    private static final int CORE_POOL_SIZE = 1;
+    /**
+     * timeout for waiting for response frame from the device
+     */
+    private final static int BT_TIMEOUT = 200;
 
-    // set max pool size
-    private static final int MAXIMUM_POOL_SIZE = 1;
+    /**
+     * max length of an attribute value (ATT)
+     */
+    private final static int MAX_ATTRIBUTE_LENGTH = 512;
 
-    // Sets the amount of time an idle thread will wait for a task before terminating
-    private static final int KEEP_ALIVE_TIME = 5;
+    /**
+     * prepare write request header on top of ATT header : value offset
+     */
+    private final static int PREPARE_WRITE_OFFSET_LENGTH = 2;
 
-    // set time unit in seconds
-    private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
+    /**
+     * write without response results
+     */
+    private final static int WRITE_ISSUED = 0;
+    private final static int WRITE_DEFERRED = 1;
+    private final static int WRITE_FAILED = 2;
 
-    LinkedBlockingQueue gattWorkingQueue = new LinkedBlockingQueue<Runnable>();
+    /**
+     * set bluetooth scan period
+     */
+    private final int SCAN_PERIOD = 30000;
 
-    /*
-     * Creates a new pool of Thread objects for the download work queue
+    /**
+     * default delay of batched scan results delivery in milliseconds
      */
-    ThreadPoolExecutor gattThreadPool = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
-            KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, gattWorkingQueue);
+    private final static long DEFAULT_SCAN_REPORT_DELAY = 250;
 
     /**
-     * timeout for waiting for response frame from the device
+     * number of RSSI samples needed before a candidate can be selected early
      */
-    private final static int BT_TIMEOUT = 200;
+    private final static int CANDIDATE_MIN_SAMPLES = 3;
 
     /**
-     * set bluetooth scan period
+     * smoothed RSSI in dBm above which a candidate is selected without waiting for the others
      */
-    private final int SCAN_PERIOD = 30000;
+    private final static int CANDIDATE_RSSI_THRESHOLD = -70;
+
+    /**
+     * time in milliseconds after the first sighting after which the best ranked candidate is selected anyway
+     */
+    private final static long CANDIDATE_SELECTION_WINDOW = 2000;
 
     /**
      * list of bluetooth connection by address
      */
-    private HashMap<String, IBluetoothDeviceConn> bluetoothConnectionList = new HashMap<>();
+    private ConcurrentHashMap<String, IBluetoothDeviceConn> bluetoothConnectionList = new ConcurrentHashMap<>();
 
-    private HashMap<String, BluetoothDevice> scanningList = new HashMap<>();
+    private ConcurrentHashMap<String, BluetoothDevice> scanningList = new ConcurrentHashMap<>();
 
     /**
-     * event manager used to block / release process
+     * devices seen during current scan with their smoothed RSSI by address
      */
-    private ManualResetEvent eventManager = new ManualResetEvent(false);
+    private HashMap<String, ScanCandidate> candidateList = new HashMap<>();
+
+    /**
+     * true when a candidate has been selected for current scan
+     */
+    private boolean candidateSelected = false;
+
+    /**
+     * deadline of candidate selection for current scan
+     */
+    private GattTimer.Timeout selectionTimeout;
+
+    /**
+     * GATT task waiting for its callback by device address
+     */
+    private ConcurrentHashMap<String, GattTask> pendingTaskList = new ConcurrentHashMap<>();
 
     /**
      * Bluetooth adapter
@@ -128,17 +164,41 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
      */
     private BluetoothAdapter.LeScanCallback scanCallback = null;
 
+    /**
+     * Callback for Bluetooth LE scanner (API 21+) receiving filtered and batched scan results
+     */
+    private ScanCallback leScanCallback = null;
+
+    /**
+     * delay of batched scan results delivery in milliseconds (0 to report each result immediately)
+     */
+    private volatile long scanReportDelay = DEFAULT_SCAN_REPORT_DELAY;
+
     private Context context = null;
 
-    private ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+    /**
+     * single timer owning GATT operation deadlines and disconnection timeouts of all connections
+     */
+    private GattTimer timer = new GattTimer();
+
+    private ConcurrentHashMap<String, GattTimer.Timeout> waitingForDisconnectionList = new ConcurrentHashMap<>();
 
-    private HashMap<String, ScheduledFuture<?>> waitingForDisconnectionList = new HashMap<>();
+    /**
+     * last device connected and its GATT layout
+     */
+    private KnownDeviceStore knownDeviceStore;
+
+    /**
+     * scan, connection and device state events
+     */
+    private BluetoothEventBus eventBus = new BluetoothEventBus();
 
     /**
      * Build bluetooth manager
      */
     public BluetoothCustomManager(Context context) {
         this.context = context;
+        this.knownDeviceStore = new KnownDeviceStore(context);
     }
 
 
@@ -153,19 +213,55 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
         if (!mBluetoothAdapter.isEnabled()) {
             mBluetoothAdapter.enable();
         }
-        scanCallback = new BluetoothAdapter.LeScanCallback() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
 
-            @Override
-            public void onLeScan(BluetoothDevice device, int rssi, final byte[] scanRecord) {
-                if (device.getAddress() != null &&
-                        device.getName() != null) {
-                    dispatchBtDevices(device, rssi, scanRecord);
+            leScanCallback = new ScanCallback() {
+
+                @Override
+                public void onScanResult(int callbackType, ScanResult result) {
+                    dispatchScanResult(result);
                 }
-            }
-        };
+
+                @Override
+                public void onBatchScanResults(List<ScanResult> results) {
+                    for (int i = 0; i < results.size(); i++) {
+                        dispatchScanResult(results.get(i));
+                    }
+                }
+
+                @Override
+                public void onScanFailed(int errorCode) {
+                    Log.e(TAG, "scan failed with error code : " + errorCode);
+                    scanning = false;
+                    eventBus.postScanEnd();
+                }
+            };
+        } else {
+
+            scanCallback = new BluetoothAdapter.LeScanCallback() {
+
+                @Override
+                public void onLeScan(BluetoothDevice device, int rssi, final byte[] scanRecord) {
+                    //no hardware filter available : drop other devices before any lookup
+                    if (device.getAddress() != null &&
+                            device.getName() != null &&
+                            ScanRecordUtils.hasServiceUuid(scanRecord, BleDisplayDevice.SERVICE_BUTTON)) {
+                        dispatchBtDevices(device, rssi, scanRecord);
+                    }
+                }
+            };
+        }
     }
 
-    private void dispatchBtDevices(BluetoothDevice device, int rssi, final byte[] scanRecord) {
+    @SuppressLint("NewApi")
+    private void dispatchScanResult(ScanResult result) {
+        BluetoothDevice device = result.getDevice();
+        if (device.getAddress() != null && device.getName() != null) {
+            dispatchBtDevices(device, result.getRssi(), result.getScanRecord() != null ? result.getScanRecord().getBytes() : null);
+        }
+    }
+
+    private synchronized void dispatchBtDevices(BluetoothDevice device, int rssi, final byte[] scanRecord) {
 
         if (!scanningList.containsKey(device.getAddress())) {
 
@@ -173,27 +269,104 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
 
             scanningList.put(device.getAddress(), device);
 
-            try {
-                JSONObject object = new JSONObject();
-                object.put(JsonConstants.BT_ADDRESS, device.getAddress());
-                object.put(JsonConstants.BT_DEVICE_NAME, device.getName());
-                object.put(JsonConstants.BT_ADVERTISING_INTERVAL, -1);
+            eventBus.postDeviceDiscovered(new BluetoothObject(device.getAddress(), device.getName(), rssi));
+        }
 
-                ArrayList<String> deviceInfo = new ArrayList<>();
-                deviceInfo.add(object.toString());
+        ScanCandidate candidate = candidateList.get(device.getAddress());
 
-                broadcastUpdateStringList(BluetoothEvents.BT_EVENT_DEVICE_DISCOVERED, deviceInfo);
+        if (candidate == null) {
+            candidate = new ScanCandidate(device, rssi);
+            candidateList.put(device.getAddress(), candidate);
+        } else {
+            candidate.update(rssi);
+        }
+
+        if (candidateSelected) {
+            return;
+        }
+
+        if (candidate.getSampleCount() >= CANDIDATE_MIN_SAMPLES &&
+                candidate.getRssi() >= CANDIDATE_RSSI_THRESHOLD &&
+                candidate == getBestCandidate()) {
+            selectCandidate(candidate);
+        } else if (selectionTimeout == null) {
+
+            //don't wait for scan period if no candidate is confident enough
+            selectionTimeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (BluetoothCustomManager.this) {
+                        selectionTimeout = null;
+                        ScanCandidate best = getBestCandidate();
+                        if (scanning && !candidateSelected && best != null) {
+                            selectCandidate(best);
+                        }
+                    }
+                }
+            }, CANDIDATE_SELECTION_WINDOW);
+        }
+    }
 
-            } catch (JSONException e) {
-                e.printStackTrace();
+    /**
+     * retrieve candidate with the highest smoothed RSSI
+     *
+     * @return best candidate or null if none
+     */
+    private ScanCandidate getBestCandidate() {
+        ScanCandidate best = null;
+        for (ScanCandidate candidate : candidateList.values()) {
+            if (best == null || candidate.getRssi() > best.getRssi()) {
+                best = candidate;
             }
         }
+        return best;
+    }
+
+    private void selectCandidate(ScanCandidate candidate) {
+
+        candidateSelected = true;
+
+        if (selectionTimeout != null) {
+            selectionTimeout.cancel();
+            selectionTimeout = null;
+        }
+        Log.v(TAG, "selected " + candidate.getDevice().getAddress() + " with RSSI " + candidate.getRssi() + " dBm after " + candidate.getSampleCount() + " samples");
+
+        eventBus.postDeviceSelected(new BluetoothObject(candidate.getDevice().getAddress(), candidate.getDevice().getName(), candidate.getRssi()));
+    }
+
+    /**
+     * candidates of current scan ranked by smoothed RSSI
+     *
+     * @return
+     */
+    public synchronized List<ScanCandidate> getCandidateList() {
+        List<ScanCandidate> list = new ArrayList<>(candidateList.values());
+        Collections.sort(list, new Comparator<ScanCandidate>() {
+            @Override
+            public int compare(ScanCandidate lhs, ScanCandidate rhs) {
+                return rhs.getRssi() - lhs.getRssi();
+            }
+        });
+        return list;
+    }
+
+    /**
+     * reset candidate selection before a new scan
+     */
+    private synchronized void resetCandidates() {
+        candidateList.clear();
+        candidateSelected = false;
+        if (selectionTimeout != null) {
+            selectionTimeout.cancel();
+            selectionTimeout = null;
+        }
     }
 
     /**
      * clear list adapter (usually before rescanning)
      */
-    public void clearScanningList() {
+    public synchronized void clearScanningList() {
         scanningList.clear();
     }
 
@@ -205,24 +378,80 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
 
         if (!scanning) {
 
-            broadcastUpdate(BluetoothEvents.BT_EVENT_SCAN_START);
+            resetCandidates();
+
+            eventBus.postScanStart();
 
             scanning = true;
 
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return startFilteredScan();
+            }
             return mBluetoothAdapter.startLeScan(scanCallback);
         }
         return false;
     }
 
+    /**
+     * Start a scan filtered on display service UUID (offloaded to controller when supported) with batched results
+     * delivery if controller supports it
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startFilteredScan() {
+
+        if (mBluetoothAdapter.getBluetoothLeScanner() == null) {
+            scanning = false;
+            return false;
+        }
+
+        ScanFilter filter = new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(BleDisplayDevice.SERVICE_BUTTON))
+                .build();
+
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+
+        if (scanReportDelay > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(scanReportDelay);
+        }
+
+        Log.v(TAG, "start filtered scan (offloaded filtering : " + mBluetoothAdapter.isOffloadedFilteringSupported() + ")");
+
+        mBluetoothAdapter.getBluetoothLeScanner().startScan(Collections.singletonList(filter), settings.build(), leScanCallback);
+
+        return true;
+    }
+
+    /**
+     * set delay of batched scan results delivery, used from next scan on API 21+ when controller supports batching
+     *
+     * @param delay report delay in milliseconds (0 to report each result immediately)
+     */
+    public void setScanReportDelay(long delay) {
+        scanReportDelay = delay;
+    }
+
     /**
      * Stop Bluetooth LE scanning
      */
     @SuppressLint("NewApi")
     public void stopScan() {
         scanning = false;
-        mBluetoothAdapter.stopLeScan(scanCallback);
+        synchronized (this) {
+            if (selectionTimeout != null) {
+                selectionTimeout.cancel();
+                selectionTimeout = null;
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (mBluetoothAdapter.getBluetoothLeScanner() != null) {
+                mBluetoothAdapter.getBluetoothLeScanner().stopScan(leScanCallback);
+            }
+        } else {
+            mBluetoothAdapter.stopLeScan(scanCallback);
+        }
         //notify end of scan
-        broadcastUpdate(BluetoothEvents.BT_EVENT_SCAN_END);
+        eventBus.postScanEnd();
     }
 
     public boolean isScanning() {
@@ -241,215 +470,517 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
 
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
 
-        boolean alreadyInList = false;
+        BluetoothDeviceConn conn = (BluetoothDeviceConn) bluetoothConnectionList.get(address);
 
-        if (bluetoothConnectionList.containsKey(address)) {
-            alreadyInList = true;
+        if (conn == null) {
+            BluetoothDeviceConn newConn = new BluetoothDeviceConn(address, device.getName(), this);
+            conn = (BluetoothDeviceConn) bluetoothConnectionList.putIfAbsent(address, newConn);
+            if (conn == null) {
+                Log.v(TAG, "new connection");
+                conn = newConn;
+            }
         }
 
-        if (alreadyInList) {
+        //only one caller wins the connection request
+        if (!conn.compareAndSetState(ConnectionState.DISCOVERED, ConnectionState.CONNECTING) &&
+                !conn.compareAndSetState(ConnectionState.CLOSED, ConnectionState.CONNECTING)) {
+            Log.v(TAG, "connection to " + address + " already in state " + conn.getState());
+            return false;
+        }
 
-            Log.v(TAG, "reusing same connection");
+        if (conn.getGatt() != null) {
 
-            BluetoothDeviceConn conn = (BluetoothDeviceConn) bluetoothConnectionList.get(address);
+            Log.v(TAG, "reusing same connection");
 
+            if (!conn.reconnect()) {
+                conn.close();
+                conn.setGatt(device.connectGatt(context, false, conn.getGattCallback()));
+            }
+        } else {
+            //connect to gatt server on the device
             conn.setGatt(device.connectGatt(context, false, conn.getGattCallback()));
+        }
 
-        } else {
+        return true;
+    }
 
-            BluetoothDeviceConn conn = new BluetoothDeviceConn(address, device.getName(), this);
+    /**
+     * connect directly to the last device initialized, without scanning
+     *
+     * @return true if a connection has been requested
+     */
+    public boolean connectLastDevice() {
 
-            bluetoothConnectionList.put(address, conn);
+        String address = knownDeviceStore.getLastAddress();
 
-            Log.v(TAG, "new connection");
-            //connect to gatt server on the device
-            conn.setGatt(device.connectGatt(context, false, conn.getGattCallback()));
+        if (address == null || mBluetoothAdapter == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return false;
         }
+        Log.v(TAG, "connecting to last device " + address);
+        return connect(address);
+    }
 
-        return true;
+    @Override
+    public KnownDeviceStore getKnownDeviceStore() {
+        return knownDeviceStore;
+    }
+
+    @Override
+    public boolean notifyOperationComplete(String deviceAddress, UUID characUuid, UUID descriptorUuid, int status) {
+
+        GattTask task = pendingTaskList.get(deviceAddress);
+
+        if (task != null && task.matches(characUuid, descriptorUuid)) {
+            releasePendingTask(deviceAddress, task, null, status);
+            return true;
+        }
+        return false;
     }
 
     @Override
-    public ManualResetEvent getEventManager() {
-        return eventManager;
+    public boolean notifyReadComplete(String deviceAddress, UUID characUuid, byte[] value, int status) {
+        return notifyValueComplete(deviceAddress, characUuid, value, status);
+    }
+
+    @Override
+    public boolean notifyWriteComplete(String deviceAddress, UUID characUuid, byte[] value, int status) {
+        return notifyValueComplete(deviceAddress, characUuid, value, status);
+    }
+
+    @Override
+    public boolean notifyReliableWriteComplete(String deviceAddress, int status) {
+
+        GattTask task = pendingTaskList.get(deviceAddress);
+
+        if (task != null && task.isExecutePending()) {
+            releasePendingTask(deviceAddress, task, null, status);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean notifyValueComplete(String deviceAddress, UUID characUuid, byte[] value, int status) {
+
+        GattTask task = pendingTaskList.get(deviceAddress);
+
+        if (task != null && task.matches(characUuid, null)) {
+            //characteristic value is reused by the stack
+            releasePendingTask(deviceAddress, task, (value != null) ? Arrays.copyOf(value, value.length) : null, status);
+            return true;
+        }
+        return false;
     }
 
     /**
-     * Send broadcast data through broadcast receiver
+     * hand a GATT callback to its pending task
      *
-     * @param action action to be sent
+     * @param deviceAddress device address
+     * @param task          pending task
+     * @param value         value from the callback (may be null)
+     * @param status        GATT status
      */
-    @Override
-    public void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        context.sendBroadcast(intent);
+    private void releasePendingTask(String deviceAddress, GattTask task, byte[] value, int status) {
+
+        if (!pendingTaskList.remove(deviceAddress, task)) {
+            //timed out meanwhile
+            return;
+        }
+        task.cancelTimeout();
+        task.setResult(value);
+
+        if (task.onCallback(status)) {
+            task.complete(status);
+        }
+    }
+
+    /**
+     * issue a write without response from a GATT task if a write credit is available. Otherwise, or if the stack is
+     * busy, the task is deferred : it returns from run() but stays the current operation of the queue, and is resumed
+     * by the flow control on the next write callback or deadline. The queue thread is never blocked
+     *
+     * @param task   GATT task issuing the write
+     * @param conn   device connection
+     * @param charac characteristic with value set
+     * @return WRITE_ISSUED, WRITE_DEFERRED or WRITE_FAILED
+     */
+    private int writeNoResponse(GattTask task, IBluetoothDeviceConn conn, BluetoothGattCharacteristic charac) {
+
+        WriteFlowControl flowControl = conn.getWriteFlowControl();
+
+        if (!flowControl.acquireOrDefer(task)) {
+            return WRITE_DEFERRED;
+        }
+        if (task.getGatt().writeCharacteristic(charac)) {
+            task.resetAttempt();
+            return WRITE_ISSUED;
+        }
+        //stack busy : retried on next write callback
+        return flowControl.onWriteRefused(task) ? WRITE_DEFERRED : WRITE_FAILED;
     }
 
     /**
-     * broadcast characteristic value
+     * register a task as waiting for its GATT callback. This must be done before the GATT operation is issued
      *
-     * @param action action to be sent (data available)
+     * @param task GATT task
      */
+    private void setPendingTask(GattTask task) {
+        task.setAwaitingCallback();
+        pendingTaskList.put(task.getGatt().getDevice().getAddress(), task);
+    }
+
+    /**
+     * arm the deadline of a pending task. The task is completed by the matching GATT callback or by the timer, the
+     * calling thread returns immediately
+     *
+     * @param task   GATT task
+     * @param conn   device connection
+     * @param issued GATT operation has been successfully issued
+     */
+    private void awaitPendingTask(GattTask task, IBluetoothDeviceConn conn, boolean issued) {
+        awaitPendingTask(task, conn, issued, BT_TIMEOUT);
+    }
+
+    /**
+     * arm the deadline of a pending task
+     *
+     * @param task    GATT task
+     * @param conn    device connection
+     * @param issued  GATT operation has been successfully issued
+     * @param timeout deadline of the GATT callback in milliseconds
+     */
+    private void awaitPendingTask(final GattTask task, final IBluetoothDeviceConn conn, boolean issued, int timeout) {
+
+        final String address = task.getGatt().getDevice().getAddress();
+
+        if (!issued) {
+            pendingTaskList.remove(address, task);
+            task.complete(BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        task.setTimeout(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pendingTaskList.remove(address, task)) {
+                    Log.e(TAG, "GATT operation timeout for " + task.getCharacUuid());
+                    conn.getTraceRing().record(TraceEvent.GATT_TIMEOUT, 0, 0, 0);
+                    task.onTimeout();
+                    task.complete(BluetoothGatt.GATT_FAILURE);
+                }
+            }
+        }, timeout));
+    }
+
     @Override
-    public void broadcastUpdateStringList(String action, ArrayList<String> valueList) {
+    public GattTimer getTimer() {
+        return timer;
+    }
 
-        String valueName = "";
-        final Intent intent = new Intent(action);
-        intent.putStringArrayListExtra(valueName, valueList);
-        context.sendBroadcast(intent);
+    @Override
+    public BluetoothEventBus getEventBus() {
+        return eventBus;
     }
 
     @SuppressLint("NewApi")
     @Override
-    public void writeCharacteristic(String characUid, byte[] value, BluetoothGatt gatt, IPushListener listener, final boolean noResponse) {
+    public void writeCharacteristic(UUID characUuid, byte[] value, final IBluetoothDeviceConn conn, IPushListener listener, final boolean noResponse, GattPriority priority) {
+
+        BluetoothGatt gatt = conn.getBluetoothGatt();
 
-        if (gatt != null && characUid != null && value != null) {
+        if (gatt != null && characUuid != null && value != null) {
 
-            gattThreadPool.execute(new GattTask(gatt, characUid, value, listener) {
+            conn.getGattQueue().execute(new GattTask(gatt, characUuid, value, listener, priority) {
                 @Override
                 public void run() {
 
-                    BluetoothGattCharacteristic charac = GattUtils.getCharacteristic(getGatt().getServices(), getUid());
-                    if (noResponse)
-                        charac.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                    charac.setValue(getValue());
+                    BluetoothGattCharacteristic charac = conn.getCharacteristic(getCharacUuid());
 
-                    getGatt().writeCharacteristic(charac);
+                    if (charac == null) {
+                        Log.e(TAG, "characteristic " + getCharacUuid() + " not found");
+                        if (getListener() != null) {
+                            getListener().onPushFailure();
+                        }
+                        return;
+                    }
+                    charac.setWriteType(noResponse ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                    charac.setValue(getValue());
 
                     if (!noResponse) {
-                        long startTime = System.currentTimeMillis();
-                        eventManager.reset();
-                        try {
-                            eventManager.waitOne(BT_TIMEOUT);
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                        setPendingTask(this);
+                        awaitPendingTask(this, conn, getGatt().writeCharacteristic(charac));
+                    } else {
+                        int result = writeNoResponse(this, conn, charac);
+                        if (result != WRITE_DEFERRED) {
+                            complete((result == WRITE_ISSUED) ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
                         }
-                        long endTime = System.currentTimeMillis();
+                    }
+                }
 
-                        if ((endTime - startTime) >= BT_TIMEOUT) {
-                            if (getListener() != null) {
-                                getListener().onPushFailure();
-                            }
+                @Override
+                protected void onTimeout() {
+                    conn.expectLateWriteCallback(getCharacUuid());
+                }
+
+                @Override
+                protected void onComplete(boolean success) {
+
+                    conn.getTraceRing().record(TraceEvent.GATT_WRITE, 0, getValue().length, success ? 1 : 0);
+
+                    if (getListener() != null) {
+                        if (success) {
+                            getListener().onPushSuccess();
                         } else {
-                            if (getListener() != null) {
-                                getListener().onPushSuccess();
-                            }
-                        }
-                    } else {
-                        try {
-                            Thread.sleep(10);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                            getListener().onPushFailure();
                         }
                     }
                 }
             });
-        } else
+        } else {
             Log.e(TAG, "Error int writeCharacteristic() input argument NULL");
+            if (listener != null) {
+                listener.onPushFailure();
+            }
+        }
     }
 
     @SuppressLint("NewApi")
     @Override
-    public void readCharacteristic(String characUid, BluetoothGatt gatt) {
+    public void writeCharacteristicBatch(UUID characUuid, final byte[] data, final int offset, final int length, final int chunkSize, final int firstSequence, final IBluetoothDeviceConn conn, final IBatchListener listener) {
+
+        BluetoothGatt gatt = conn.getBluetoothGatt();
+
+        if (gatt != null && characUuid != null && data != null && chunkSize > 0) {
 
-        if (gatt != null && characUid != null) {
+            conn.getGattQueue().execute(new BatchWriteTask(gatt, characUuid, data, offset, length, chunkSize, firstSequence,
+                    conn.getWriteFlowControl(), conn.getChunkBufferPool(), conn.getTraceRing(), listener) {
+
+                private BluetoothGattCharacteristic charac = null;
 
-            gattThreadPool.execute(new GattTask(gatt, characUid, null, null) {
                 @Override
-                public void run() {
+                protected boolean prepare() {
 
-                    BluetoothGattCharacteristic charac = GattUtils.getCharacteristic(getGatt().getServices(), getUid());
+                    charac = conn.getCharacteristic(getCharacUuid());
 
-                    getGatt().readCharacteristic(charac);
-                    eventManager.reset();
-                    try {
-                        eventManager.waitOne(BT_TIMEOUT);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                    if (charac == null) {
+                        Log.e(TAG, "characteristic " + getCharacUuid() + " not found");
+                        return false;
                     }
+                    charac.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    return true;
+                }
+
+                @Override
+                protected boolean issueWrite(byte[] chunk) {
+                    charac.setValue(chunk);
+                    return getGatt().writeCharacteristic(charac);
                 }
             });
-        } else
-            Log.e(TAG, "Error int writeCharacteristic() input argument NULL");
+        } else {
+            Log.e(TAG, "Error int writeCharacteristicBatch() input argument NULL");
+            listener.onBatchFailure(0);
+        }
     }
 
     @SuppressLint("NewApi")
     @Override
-    public void writeDescriptor(String descriptorUid, BluetoothGatt gatt, byte[] value, String serviceUid, String characUid) {
+    public void readCharacteristic(UUID characUuid, final IBluetoothDeviceConn conn, final IReadListener listener) {
+
+        BluetoothGatt gatt = conn.getBluetoothGatt();
 
-        if (gatt != null && descriptorUid != null) {
+        if (gatt != null && characUuid != null) {
 
-            gattThreadPool.execute(new GattTask(gatt, descriptorUid, value, serviceUid, characUid) {
+            conn.getGattQueue().execute(new GattTask(gatt, characUuid, null, null) {
                 @Override
                 public void run() {
 
-                    if (getGatt().getService(UUID.fromString(getDescriptorServiceUid())) != null &&
-                            getGatt().getService(UUID.fromString(getDescriptorServiceUid())).getCharacteristic(UUID.fromString(getDescriptorCharacUid())) != null &&
-                            getGatt().getService(UUID.fromString(getDescriptorServiceUid())).getCharacteristic(UUID.fromString(getDescriptorCharacUid())).getDescriptor(UUID.fromString(getUid())) != null) {
+                    BluetoothGattCharacteristic charac = conn.getCharacteristic(getCharacUuid());
 
-                        BluetoothGattDescriptor descriptor = getGatt().getService(UUID.fromString(getDescriptorServiceUid()))
-                                .getCharacteristic(UUID.fromString(getDescriptorCharacUid())).getDescriptor(UUID.fromString(getUid()));
+                    if (charac == null) {
+                        Log.e(TAG, "characteristic " + getCharacUuid() + " not found");
+                        if (listener != null) {
+                            listener.onReadFailure();
+                        }
+                        return;
+                    }
 
-                        descriptor.setValue(getValue());
+                    setPendingTask(this);
+                    awaitPendingTask(this, conn, getGatt().readCharacteristic(charac));
+                }
 
-                        getGatt().writeDescriptor(descriptor);
-                    }
-                    eventManager.reset();
-                    try {
-                        eventManager.waitOne(BT_TIMEOUT);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                @Override
+                protected void onComplete(boolean success) {
+                    if (listener != null) {
+                        if (success && getResult() != null) {
+                            listener.onReadSuccess(getResult());
+                        } else {
+                            listener.onReadFailure();
+                        }
                     }
                 }
             });
-            gattThreadPool.execute(new Runnable() {
+        } else {
+            Log.e(TAG, "Error int readCharacteristic() input argument NULL");
+            if (listener != null) {
+                listener.onReadFailure();
+            }
+        }
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public void writeDescriptor(UUID descriptorUuid, final IBluetoothDeviceConn conn, byte[] value, UUID serviceUuid, UUID characUuid, final IPushListener listener) {
+
+        BluetoothGatt gatt = conn.getBluetoothGatt();
+
+        if (gatt != null && descriptorUuid != null) {
+
+            conn.getGattQueue().execute(new GattTask(gatt, descriptorUuid, value, serviceUuid, characUuid) {
                 @Override
                 public void run() {
 
+                    BluetoothGattDescriptor descriptor = conn.getDescriptor(getCharacUuid(), getDescriptorUuid());
+
+                    if (descriptor != null) {
+
+                        descriptor.setValue(getValue());
+
+                        setPendingTask(this);
+                        awaitPendingTask(this, conn, getGatt().writeDescriptor(descriptor));
+                    } else {
+                        Log.e(TAG, "descriptor " + getDescriptorUuid() + " not found for characteristic " + getCharacUuid());
+                        if (listener != null) {
+                            listener.onPushFailure();
+                        }
+                    }
+                }
+
+                @Override
+                protected void onComplete(boolean success) {
+                    if (listener != null) {
+                        if (success) {
+                            listener.onPushSuccess();
+                        } else {
+                            listener.onPushFailure();
+                        }
+                    }
                 }
             });
-        } else
-            Log.e(TAG, "Error int writeCharacteristic() input argument NULL");
+        } else {
+            Log.e(TAG, "Error int writeDescriptor() input argument NULL");
+            if (listener != null) {
+                listener.onPushFailure();
+            }
+        }
     }
 
     @Override
-    public HashMap<String, IBluetoothDeviceConn> getConnectionList() {
+    public Map<String, IBluetoothDeviceConn> getConnectionList() {
         return bluetoothConnectionList;
     }
 
     @Override
-    public HashMap<String, ScheduledFuture<?>> getWaitingMap() {
+    public Context getContext() {
+        return context;
+    }
+
+    @Override
+    public ConcurrentHashMap<String, GattTimer.Timeout> getWaitingMap() {
         return waitingForDisconnectionList;
     }
 
+    /**
+     * write a value in a single prepared write transaction (up to 512 bytes) :
+     * <ul>
+     * <li>value fitting in one prepare write request : prepare write, check of the echoed value, execute and wait for
+     * onReliableWriteCompleted</li>
+     * <li>longer value : the stack splits it into prepare write requests sent back to back at increasing offsets,
+     * checks each echo and executes the queue</li>
+     * </ul>
+     * Any failure cancels the prepared writes so that the characteristic is never partially written
+     */
     @Override
-    public void writeLongCharacteristic(String charac, byte[] data, BluetoothGatt gatt, IPushListener listener) {
-        if (gatt != null && charac != null && data != null) {
+    public void writeLongCharacteristic(UUID characUuid, byte[] data, final IBluetoothDeviceConn conn, IPushListener listener) {
+
+        BluetoothGatt gatt = conn.getBluetoothGatt();
+
+        if (gatt != null && characUuid != null && data != null && data.length <= MAX_ATTRIBUTE_LENGTH) {
 
-            gattThreadPool.execute(new GattTask(gatt, charac, data, listener) {
-                @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+            conn.getGattQueue().execute(new GattTask(gatt, characUuid, data, listener) {
+
+                /**
+                 * true if the value is sent with an explicit reliable write
+                 */
+                private boolean reliable = false;
+
+                @TargetApi(Build.VERSION_CODES.KITKAT)
                 @Override
                 public void run() {
 
-                    getGatt().beginReliableWrite();
+                    BluetoothGattCharacteristic charac = conn.getCharacteristic(getCharacUuid());
 
-                    BluetoothGattCharacteristic charac = GattUtils.getCharacteristic(getGatt().getServices(), getUid());
-                    //charac.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    if (charac == null) {
+                        Log.e(TAG, "characteristic " + getCharacUuid() + " not found");
+                        if (getListener() != null) {
+                            getListener().onPushFailure();
+                        }
+                        return;
+                    }
+
+                    int segmentLength = conn.getMaxPayload() - PREPARE_WRITE_OFFSET_LENGTH;
+
+                    if (getValue().length <= segmentLength) {
+                        if (!getGatt().beginReliableWrite()) {
+                            Log.e(TAG, "reliable write can't be started");
+                            complete(BluetoothGatt.GATT_FAILURE);
+                            return;
+                        }
+                        reliable = true;
+                    }
+
+                    charac.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
                     charac.setValue(getValue());
 
-                    getGatt().writeCharacteristic(charac);
+                    int segmentCount = (getValue().length + segmentLength - 1) / segmentLength;
+
+                    setPendingTask(this);
+                    awaitPendingTask(this, conn, getGatt().writeCharacteristic(charac), BT_TIMEOUT * (segmentCount + 1));
+                }
+
+                @TargetApi(Build.VERSION_CODES.KITKAT)
+                @Override
+                protected boolean onCallback(int status) {
+
+                    if (!reliable || isExecutePending()) {
+                        return true;
+                    }
+                    if (status != BluetoothGatt.GATT_SUCCESS || !Arrays.equals(getResult(), getValue())) {
+                        Log.e(TAG, "prepared write rejected or echo mismatch for " + getCharacUuid());
+                        complete(BluetoothGatt.GATT_FAILURE);
+                        return false;
+                    }
+                    setExecutePending(true);
+                    setPendingTask(this);
+                    awaitPendingTask(this, conn, getGatt().executeReliableWrite());
+                    return false;
+                }
 
-                    long startTime = System.currentTimeMillis();
-                    eventManager.reset();
-                    try {
-                        eventManager.waitOne(BT_TIMEOUT);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                @Override
+                protected void onTimeout() {
+                    //an execute timeout is followed by onReliableWriteCompleted, not by a characteristic write callback
+                    if (!isExecutePending()) {
+                        conn.expectLateWriteCallback(getCharacUuid());
                     }
-                    long endTime = System.currentTimeMillis();
+                }
 
-                    getGatt().executeReliableWrite();
-                    if ((endTime - startTime) >= BT_TIMEOUT) {
+                @TargetApi(Build.VERSION_CODES.KITKAT)
+                @Override
+                protected void onComplete(boolean success) {
+
+                    if (reliable && !success && !isExecutePending()) {
+                        getGatt().abortReliableWrite();
+                    }
+                    conn.getTraceRing().record(TraceEvent.GATT_WRITE, 0, getValue().length, success ? 1 : 0);
+
+                    if (!success) {
                         if (getListener() != null) {
                             getListener().onPushFailure();
                         }
@@ -460,8 +991,12 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
                     }
                 }
             });
-        } else
-            Log.e(TAG, "Error int writeCharacteristic() input argument NULL");
+        } else {
+            Log.e(TAG, "Error int writeLongCharacteristic() input argument NULL or value too long");
+            if (listener != null) {
+                listener.onPushFailure();
+            }
+        }
     }
 
     @SuppressLint("NewApi")
@@ -472,26 +1007,44 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
             return false;
         }
 
-        if (bluetoothConnectionList.containsKey(deviceAddress)) {
+        final IBluetoothDeviceConn conn = bluetoothConnectionList.get(deviceAddress);
 
-            if (bluetoothConnectionList.get(deviceAddress).getBluetoothGatt() != null) {
-                Log.v(TAG, "disconnect device");
-                bluetoothConnectionList.get(deviceAddress).getBluetoothGatt().disconnect();
+        if (conn != null) {
 
-                if (!waitingForDisconnectionList.containsKey(deviceAddress)) {
+            ConnectionState current;
 
-                    ScheduledFuture<?> task = executor.schedule(new Runnable() {
-                        @Override
-                        public void run() {
-                            Log.v(TAG, "connection forced close");
-                            bluetoothConnectionList.get(deviceAddress).getBluetoothGatt().close();
-                            waitingForDisconnectionList.remove(deviceAddress);
-                        }
-                    }, 1000, TimeUnit.MILLISECONDS);
+            //only one caller wins the disconnection request
+            do {
+                current = conn.getState();
+                if (current == ConnectionState.DISCOVERED || current == ConnectionState.DISCONNECTING || current == ConnectionState.CLOSED) {
+                    return true;
+                }
+            } while (!conn.compareAndSetState(current, ConnectionState.DISCONNECTING));
 
-                    waitingForDisconnectionList.put(deviceAddress, task);
+            //registered before disconnecting so that the disconnection callback always finds it
+            GattTimer.Timeout task = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    waitingForDisconnectionList.remove(deviceAddress);
+                    //no disconnection callback received
+                    if (conn.getState() == ConnectionState.DISCONNECTING) {
+                        Log.v(TAG, "connection forced close");
+                        conn.close();
+                        if (conn.compareAndSetState(ConnectionState.DISCONNECTING, ConnectionState.CLOSED)) {
+                            if (conn.getDevice() != null) {
+                                conn.getDevice().notifyDisconnected();
+                            }
+                            eventBus.postDeviceDisconnected(new BluetoothObject(conn.getAddress(), conn.getDeviceName(), -1));
+                        }
+                    }
                 }
-                bluetoothConnectionList.get(deviceAddress).setConnected(false);
+            }, 1000);
+
+            waitingForDisconnectionList.put(deviceAddress, task);
+
+            if (conn.getBluetoothGatt() != null) {
+                Log.v(TAG, "disconnect device");
+                conn.getBluetoothGatt().disconnect();
             }
 
             return true;
@@ -501,15 +1054,86 @@ public class BluetoothCustomManager implements IBluetoothCustomManager {
         return false;
     }
 
+    /**
+     * abort a connection that is not ready yet (connecting, discovering or disconnecting) : the gatt is closed and the
+     * connection is CLOSED when this returns, so that it can be connected again right away
+     *
+     * @param deviceAddress bluetooth device address
+     * @return true if the connection is closed
+     */
+    public boolean cancelConnection(String deviceAddress) {
+
+        final IBluetoothDeviceConn conn = (deviceAddress != null) ? bluetoothConnectionList.get(deviceAddress) : null;
+
+        if (conn == null) {
+            return false;
+        }
+        ConnectionState current;
+
+        do {
+            current = conn.getState();
+            if (current == ConnectionState.DISCOVERED || current == ConnectionState.CLOSED) {
+                return true;
+            }
+            if (current == ConnectionState.READY || current == ConnectionState.UPLOADING) {
+                return false;
+            }
+        } while (!conn.compareAndSetState(current, ConnectionState.CLOSED));
+
+        Log.v(TAG, "cancel connection in state " + current);
+
+        GattTimer.Timeout forcedClose = waitingForDisconnectionList.remove(deviceAddress);
+        if (forcedClose != null) {
+            forcedClose.cancel();
+        }
+        conn.close();
+
+        if (conn.getDevice() != null) {
+            conn.getDevice().notifyDisconnected();
+        }
+        if (current == ConnectionState.DISCONNECTING) {
+            //disconnection requested by user : notified as the forced close would do
+            eventBus.postDeviceDisconnected(new BluetoothObject(conn.getAddress(), conn.getDeviceName(), -1));
+        }
+        return true;
+    }
+
     public void disconnectAll() {
-        Iterator it = getConnectionList().entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, IBluetoothDeviceConn> pair = (Map.Entry) it.next();
-            pair.getValue().disconnect();
+        for (String deviceAddress : bluetoothConnectionList.keySet()) {
+            disconnect(deviceAddress);
+        }
+    }
+
+    /**
+     * stop scanning, close all connections and stop the timer thread. Manager must not be used afterwards
+     */
+    public void release() {
+
+        stopScan();
+
+        for (IBluetoothDeviceConn conn : bluetoothConnectionList.values()) {
+
+            ConnectionState current;
+
+            do {
+                current = conn.getState();
+                if (current == ConnectionState.DISCOVERED || current == ConnectionState.CLOSED) {
+                    break;
+                }
+            } while (!conn.compareAndSetState(current, ConnectionState.CLOSED));
+
+            if (current != ConnectionState.DISCOVERED && current != ConnectionState.CLOSED) {
+                conn.close();
+                if (conn.getDevice() != null) {
+                    conn.getDevice().notifyDisconnected();
+                }
+            }
         }
+        waitingForDisconnectionList.clear();
+        timer.stop();
     }
 
-    public HashMap<String, BluetoothDevice> getScanningList() {
+    public Map<String, BluetoothDevice> getScanningList() {
         return scanningList;
     }
 }
@@ -0,0 +1,67 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+/**
+ * Reusable buffers for chunk writes. BluetoothGattCharacteristic.setValue() takes the whole array as value, so a buffer
+ * is kept for each frame length : once the full frame and the window tail lengths have been seen, chunk writes don't
+ * allocate anymore. Not thread safe, to be used from the GATT operation queue only
+ *
+ * @author Bertrand Martel
+ */
+public class ChunkBufferPool {
+
+    /**
+     * buffers indexed by length
+     */
+    private final byte[][] buffers;
+
+    /**
+     * @param maxLength max frame length
+     */
+    public ChunkBufferPool(int maxLength) {
+        buffers = new byte[maxLength + 1][];
+    }
+
+    /**
+     * get a buffer of the given length. The value is copied by the stack when the write is issued, the same buffer is
+     * returned for the next write of the same length
+     *
+     * @param length buffer length
+     * @return buffer of the given length
+     */
+    public byte[] get(int length) {
+
+        if (length < 0 || length >= buffers.length) {
+            throw new IllegalArgumentException("invalid chunk length " + length);
+        }
+        byte[] buffer = buffers[length];
+
+        if (buffer == null) {
+            buffer = new byte[length];
+            buffers[length] = buffer;
+        }
+        return buffer;
+    }
+}
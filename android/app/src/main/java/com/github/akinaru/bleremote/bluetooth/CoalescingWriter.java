@@ -0,0 +1,144 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import com.github.akinaru.bleremote.bluetooth.connection.IBluetoothDeviceConn;
+import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Latest value wins writer for a state characteristic : while a write is in flight, a new value replaces the pending one so only the latest state is sent.
+ * Listeners of a replaced value are notified with the result of the write carrying the newer value.
+ *
+ * @author Bertrand Martel
+ */
+public class CoalescingWriter {
+
+    private final IBluetoothDeviceConn conn;
+
+    private final UUID service;
+
+    private final UUID charac;
+
+    private final GattPriority priority;
+
+    /**
+     * define if a write is in flight
+     */
+    private boolean writing = false;
+
+    /**
+     * value to be written when the in flight write completes
+     */
+    private byte[] pendingValue = null;
+
+    /**
+     * listeners waiting for the pending value to be written
+     */
+    private List<IPushListener> pendingListeners = new ArrayList<>();
+
+    /**
+     * number of values replaced before being written
+     */
+    private int coalescedCount = 0;
+
+    public CoalescingWriter(IBluetoothDeviceConn conn, UUID service, UUID charac, GattPriority priority) {
+        this.conn = conn;
+        this.service = service;
+        this.charac = charac;
+        this.priority = priority;
+    }
+
+    /**
+     * write a value, replacing any value not yet sent
+     *
+     * @param value    characteristic value
+     * @param listener push listener (may be null)
+     */
+    public synchronized void write(byte[] value, IPushListener listener) {
+
+        if (pendingValue != null) {
+            coalescedCount++;
+        }
+        pendingValue = value;
+
+        if (listener != null) {
+            pendingListeners.add(listener);
+        }
+
+        if (!writing) {
+            flush();
+        }
+    }
+
+    /**
+     * send the pending value (lock held)
+     */
+    private void flush() {
+
+        final byte[] value = pendingValue;
+        final List<IPushListener> listeners = pendingListeners;
+
+        pendingValue = null;
+        pendingListeners = new ArrayList<>();
+        writing = true;
+
+        conn.writeCharacteristic(service, charac, value, new IPushListener() {
+            @Override
+            public void onPushFailure() {
+                onWriteDone(listeners, false);
+            }
+
+            @Override
+            public void onPushSuccess() {
+                onWriteDone(listeners, true);
+            }
+        }, false, priority);
+    }
+
+    private void onWriteDone(List<IPushListener> listeners, boolean success) {
+
+        synchronized (this) {
+            writing = false;
+            if (pendingValue != null) {
+                flush();
+            }
+        }
+
+        for (int i = 0; i < listeners.size(); i++) {
+            if (success) {
+                listeners.get(i).onPushSuccess();
+            } else {
+                listeners.get(i).onPushFailure();
+            }
+        }
+    }
+
+    public synchronized int getCoalescedCount() {
+        return coalescedCount;
+    }
+}
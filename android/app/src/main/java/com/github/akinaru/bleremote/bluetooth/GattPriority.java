@@ -21,19 +21,22 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
  * THE SOFTWARE.                                                                *
  */
-package com.github.akinaru.bleremote.bluetooth.events;
+package com.github.akinaru.bleremote.bluetooth;
 
 /**
- * Filter action broadcasted from bluetooh custom service
+ * Priority class of a GATT task in the connection operation queue. Tasks of a higher class are executed first, tasks of the same class are executed in order
  *
  * @author Bertrand Martel
  */
-public class BluetoothEvents {
+public enum GattPriority {
 
-    public final static String BT_EVENT_DEVICE_DISCONNECTED = "com.github.akinaru.bledisplayremote.bluetooth.BT_EVENT_DEVICE_DISCONNECTED";
-    public final static String BT_EVENT_DEVICE_CONNECTED = "com.github.akinaru.bledisplayremote.bluetooth.BT_EVENT_DEVICE_CONNECTED";
-    public final static String BT_EVENT_SCAN_START = "com.github.akinaru.bledisplayremote.bluetooth.BT_EVENT_SCAN_START";
-    public final static String BT_EVENT_SCAN_END = "com.github.akinaru.bledisplayremote.bluetooth.BT_EVENT_SCAN_END";
-    public final static String BT_EVENT_DEVICE_DISCOVERED = "com.github.akinaru.bledisplayremote.bluetooth.BT_EVENT_DEVICE_DISCOVERED";
+    /**
+     * interactive commands (led, color, transmit cancel)
+     */
+    HIGH,
 
+    /**
+     * everything else including bulk bitmap chunks
+     */
+    NORMAL
 }
@@ -0,0 +1,235 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * GATT operation queue of a connection : tasks are ordered by priority (see GattTask) and run one at a time. A task
+ * waiting for its GATT callback doesn't hold any thread, the next task is started when the callback or the timeout
+ * completes it. A deferred task (waiting for a write credit) doesn't hold any thread either but remains the current
+ * operation : tasks queued after it can't overtake it. It is resumed on the thread releasing the resource it waits for
+ *
+ * @author Bertrand Martel
+ */
+public class GattQueue implements Executor {
+
+    private final PriorityQueue<GattTask> taskQueue = new PriorityQueue<>();
+
+    /**
+     * executor running the tasks
+     */
+    private final Executor runner;
+
+    /**
+     * task being run or waiting for its GATT callback
+     */
+    private GattTask current = null;
+
+    /**
+     * true while the current task is being run by a thread
+     */
+    private boolean running = false;
+
+    /**
+     * current task has been resumed while still returning from its deferring run
+     */
+    private boolean resumeRequested = false;
+
+    /**
+     * run the current task on the executor, the same instance is used for all tasks
+     */
+    private final Runnable runCurrent = new Runnable() {
+        @Override
+        public void run() {
+            GattTask task;
+            synchronized (GattQueue.this) {
+                task = current;
+            }
+            if (task != null) {
+                runTask(task);
+            }
+        }
+    };
+
+    public GattQueue(Executor runner) {
+        this.runner = runner;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!(command instanceof GattTask)) {
+            throw new IllegalArgumentException("only GATT tasks are accepted");
+        }
+        submit((GattTask) command);
+    }
+
+    public synchronized void submit(GattTask task) {
+        taskQueue.add(task);
+        if (current == null) {
+            runNext();
+        }
+    }
+
+    /**
+     * release the queue once a task is complete and start the next one
+     *
+     * @param task completed task
+     */
+    public synchronized void done(GattTask task) {
+        if (current == task) {
+            current = null;
+            runNext();
+        }
+    }
+
+    /**
+     * run a deferred task again, on the calling thread (write callback or timer) : resuming a task doesn't go through
+     * the executor. The task must not block
+     *
+     * @param task deferred task, must be the current operation
+     */
+    public void resume(GattTask task) {
+
+        synchronized (this) {
+
+            if (current != task || !task.isDeferred()) {
+                return;
+            }
+            if (running) {
+                //run again by the thread returning from run()
+                resumeRequested = true;
+                return;
+            }
+            running = true;
+            task.setDeferred(false);
+        }
+        runTask(task);
+    }
+
+    /**
+     * remove pending tasks targeting a characteristic (task being run is not affected)
+     *
+     * @param charac characteristic uuid
+     * @return removed tasks
+     */
+    public synchronized List<GattTask> remove(UUID charac) {
+
+        List<GattTask> removed = new ArrayList<>();
+
+        Iterator<GattTask> iterator = taskQueue.iterator();
+
+        while (iterator.hasNext()) {
+            GattTask task = iterator.next();
+            if (task.matches(charac, null)) {
+                iterator.remove();
+                removed.add(task);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * check if a task of a higher priority than a given task is pending
+     *
+     * @param task task being run
+     * @return true if the next task to run has a higher priority
+     */
+    public synchronized boolean hasHigherPriority(GattTask task) {
+        GattTask next = taskQueue.peek();
+        return next != null && next.getPriority().compareTo(task.getPriority()) < 0;
+    }
+
+    public synchronized int size() {
+        return taskQueue.size();
+    }
+
+    private void runNext() {
+
+        current = taskQueue.poll();
+        resumeRequested = false;
+
+        if (current == null) {
+            running = false;
+            return;
+        }
+        running = true;
+
+        current.setQueue(this);
+        current.setDeferred(false);
+
+        runner.execute(runCurrent);
+    }
+
+    /**
+     * run a task, again if it has been resumed while deferring itself
+     *
+     * @param task current task
+     */
+    private void runTask(GattTask task) {
+        boolean again = true;
+        while (again) {
+            try {
+                task.run();
+            } finally {
+                again = onTaskReturned(task);
+            }
+        }
+    }
+
+    /**
+     * release the queue if the task returned without waiting for a callback or a resource
+     *
+     * @param task task that returned from run()
+     * @return true if the task has to be run again
+     */
+    private synchronized boolean onTaskReturned(GattTask task) {
+
+        if (current != task) {
+            //completed during run, next task already started
+            return false;
+        }
+        if (task.isDeferred()) {
+            if (resumeRequested) {
+                resumeRequested = false;
+                task.setDeferred(false);
+                return true;
+            }
+            running = false;
+            return false;
+        }
+        running = false;
+
+        if (!task.isAwaitingCallback()) {
+            current = null;
+            runNext();
+        }
+        return false;
+    }
+}
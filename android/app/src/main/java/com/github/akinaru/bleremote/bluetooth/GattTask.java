@@ -27,51 +27,327 @@ import android.bluetooth.BluetoothGatt;
 
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
 
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Description of a GATT task to be executed (write/read characteristic/descriptor)
  *
  * @author Bertrand Martel
  */
-public abstract class GattTask implements Runnable {
+public abstract class GattTask implements Runnable, Comparable<GattTask> {
+
+    /**
+     * sequence generator used to keep tasks of the same priority in order
+     */
+    private final static AtomicLong sequenceGenerator = new AtomicLong();
+
+    private final long sequence = sequenceGenerator.getAndIncrement();
+
+    private GattPriority priority = GattPriority.NORMAL;
 
-    private String gattUid = "";
     private byte[] value = null;
 
-    private String descriptorCharacUid = "";
-    private String descriptorServiceUid = "";
+    private UUID descriptorServiceUuid = null;
     private IPushListener listener = null;
 
     private BluetoothGatt gatt = null;
 
-    public GattTask(BluetoothGatt gatt, String descriptorUid, byte[] descriptorVal, String serviceUid, String characUid) {
+    /**
+     * characteristic targeted by this task (owner characteristic for a descriptor task)
+     */
+    private UUID characUuid = null;
+
+    /**
+     * descriptor targeted by this task (null for a characteristic task)
+     */
+    private UUID descriptorUuid = null;
+
+    /**
+     * set when the GATT callback matching this task is received or has timed out
+     */
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+
+    /**
+     * true once the GATT operation has been issued and completion is expected from a callback
+     */
+    private volatile boolean awaitingCallback = false;
+
+    /**
+     * status reported by the matching GATT callback
+     */
+    private volatile int status = BluetoothGatt.GATT_FAILURE;
+
+    /**
+     * value returned by the matching GATT callback (read operations)
+     */
+    private volatile byte[] result = null;
+
+    /**
+     * queue running this task, released on completion
+     */
+    private volatile GattQueue queue = null;
+
+    /**
+     * deadline of the GATT callback
+     */
+    private volatile GattTimer.Timeout timeout = null;
+
+    /**
+     * true when waiting for onReliableWriteCompleted instead of a characteristic/descriptor callback
+     */
+    private volatile boolean executePending = false;
+
+    /**
+     * true when the task is waiting for a resource (write credit) : it stays the current operation of its queue until
+     * it is resumed
+     */
+    private volatile boolean deferred = false;
+
+    /**
+     * number of times the stack refused the GATT operation of this task
+     */
+    private int attempt = 0;
+
+    public GattTask(BluetoothGatt gatt, UUID descriptorUuid, byte[] descriptorVal, UUID serviceUuid, UUID characUuid) {
         this.gatt = gatt;
-        this.gattUid = descriptorUid;
+        this.descriptorUuid = descriptorUuid;
         this.value = descriptorVal;
-        this.descriptorCharacUid = characUid;
-        this.descriptorServiceUid = serviceUid;
+        this.characUuid = characUuid;
+        this.descriptorServiceUuid = serviceUuid;
     }
 
-    public GattTask(BluetoothGatt gatt, String gattUid, byte[] value, IPushListener listener) {
+    public GattTask(BluetoothGatt gatt, UUID characUuid, byte[] value, IPushListener listener) {
         this.gatt = gatt;
-        this.gattUid = gattUid;
+        this.characUuid = characUuid;
         this.value = value;
         this.listener = listener;
     }
 
-    public String getUid() {
-        return gattUid;
+    public GattTask(BluetoothGatt gatt, UUID characUuid, byte[] value, IPushListener listener, GattPriority priority) {
+        this(gatt, characUuid, value, listener);
+        this.priority = priority;
     }
 
-    public byte[] getValue() {
-        return value;
+    @Override
+    public int compareTo(GattTask task) {
+        int order = priority.compareTo(task.priority);
+        if (order != 0) {
+            return order;
+        }
+        return (sequence < task.sequence) ? -1 : ((sequence == task.sequence) ? 0 : 1);
+    }
+
+    /**
+     * check if a GATT callback targets the same characteristic/descriptor as this task
+     *
+     * @param characUuid     characteristic uuid from the callback
+     * @param descriptorUuid descriptor uuid from the callback (null for a characteristic callback)
+     * @return true if the callback completes this task
+     */
+    public boolean matches(UUID characUuid, UUID descriptorUuid) {
+        if (executePending || !this.characUuid.equals(characUuid)) {
+            return false;
+        }
+        if (this.descriptorUuid == null) {
+            return descriptorUuid == null;
+        }
+        return this.descriptorUuid.equals(descriptorUuid);
+    }
+
+    /**
+     * complete this task with the status reported by the matching GATT callback (or a failure on timeout) and release
+     * the queue. Only the first call is taken into account
+     *
+     * @param status GATT status
+     */
+    public void complete(int status) {
+
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        this.status = status;
+
+        cancelTimeout();
+
+        try {
+            onComplete(status == BluetoothGatt.GATT_SUCCESS);
+        } finally {
+            GattQueue owner = queue;
+            if (owner != null) {
+                owner.done(this);
+            }
+        }
+    }
+
+    /**
+     * called once when this task is complete
+     *
+     * @param success operation has been acknowledged successfully
+     */
+    protected void onComplete(boolean success) {
+    }
+
+    /**
+     * called when the GATT callback matching this task is received. A task made of several GATT operations issues the
+     * next one here (or calls complete() itself) and returns false
+     *
+     * @param status GATT status
+     * @return true to complete the task with this status
+     */
+    protected boolean onCallback(int status) {
+        return true;
+    }
+
+    /**
+     * called when the GATT callback of this task has not been received in time, before the task is completed with a
+     * failure
+     */
+    protected void onTimeout() {
+    }
+
+    /**
+     * mark this task as waiting for its GATT callback : the queue won't start the next task until complete() is called
+     */
+    public void setAwaitingCallback() {
+        awaitingCallback = true;
+    }
+
+    public boolean isAwaitingCallback() {
+        return awaitingCallback;
+    }
+
+    public boolean isCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * set the deadline of the GATT callback
+     *
+     * @param timeout timer entry completing this task on expiry
+     */
+    public void setTimeout(GattTimer.Timeout timeout) {
+        cancelTimeout();
+        this.timeout = timeout;
+        if (completed.get()) {
+            timeout.cancel();
+        }
     }
 
-    public String getDescriptorServiceUid() {
-        return descriptorServiceUid;
+    /**
+     * cancel the deadline of the GATT callback being waited for
+     */
+    public void cancelTimeout() {
+        GattTimer.Timeout deadline = timeout;
+        if (deadline != null) {
+            deadline.cancel();
+        }
     }
 
-    public String getDescriptorCharacUid() {
-        return descriptorCharacUid;
+    public boolean isExecutePending() {
+        return executePending;
+    }
+
+    /**
+     * wait for onReliableWriteCompleted instead of a characteristic/descriptor callback
+     *
+     * @param executePending
+     */
+    public void setExecutePending(boolean executePending) {
+        this.executePending = executePending;
+    }
+
+    /**
+     * count a GATT operation refused by the stack
+     *
+     * @return number of refused attempts so far
+     */
+    public int nextAttempt() {
+        return ++attempt;
+    }
+
+    public void resetAttempt() {
+        attempt = 0;
+    }
+
+    public void setQueue(GattQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * mark this task as waiting for a resource before returning from run() : the queue won't start the next task, the
+     * task is run again when resume() is called
+     */
+    public void defer() {
+        deferred = true;
+    }
+
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+    }
+
+    /**
+     * run a deferred task again, it is still the current operation of its queue
+     */
+    public void resume() {
+        GattQueue owner = queue;
+        if (owner != null) {
+            owner.resume(this);
+        }
+    }
+
+    /**
+     * check if a task of a higher priority is waiting behind this one in its queue
+     *
+     * @return true if this task should give the queue back
+     */
+    public boolean hasHigherPriorityPending() {
+        GattQueue owner = queue;
+        return owner != null && owner.hasHigherPriority(this);
+    }
+
+    /**
+     * submit this task again to the queue that ran it. A task made of several GATT operations calls this before
+     * returning from run() to let higher priority tasks run between two operations
+     */
+    public void resubmit() {
+        GattQueue owner = queue;
+        if (owner != null) {
+            owner.submit(this);
+        }
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public byte[] getResult() {
+        return result;
+    }
+
+    public void setResult(byte[] result) {
+        this.result = result;
+    }
+
+    public UUID getCharacUuid() {
+        return characUuid;
+    }
+
+    public UUID getDescriptorUuid() {
+        return descriptorUuid;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public UUID getDescriptorServiceUuid() {
+        return descriptorServiceUuid;
     }
 
     public BluetoothGatt getGatt() {
@@ -82,4 +358,8 @@ public abstract class GattTask implements Runnable {
         return listener;
     }
 
+    public GattPriority getPriority() {
+        return priority;
+    }
+
 }
@@ -0,0 +1,325 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed wheel timer owning every GATT operation deadline : timeouts are inserted, cancelled and expired in O(1) by a
+ * single thread and delivered as events instead of parking one thread per pending operation. The thread only ticks
+ * while timeouts are pending : it waits for the next schedule when the wheel is empty
+ *
+ * @author Bertrand Martel
+ */
+public class GattTimer {
+
+    private final static String TAG = GattTimer.class.getSimpleName();
+
+    /**
+     * wheel resolution (ms)
+     */
+    private final static int TICK_DURATION = 10;
+
+    /**
+     * number of buckets (power of two)
+     */
+    private final static int WHEEL_SIZE = 512;
+
+    private final static int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * wheel buckets : linked list of timeouts, only modified by the timer thread
+     */
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+
+    /**
+     * timeouts scheduled since the last tick
+     */
+    private final ConcurrentLinkedQueue<Timeout> scheduledQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * timeouts cancelled since the last tick
+     */
+    private final ConcurrentLinkedQueue<Timeout> cancelledQueue = new ConcurrentLinkedQueue<>();
+
+    private final long startTime = System.nanoTime();
+
+    /**
+     * current tick, only used by the timer thread
+     */
+    private long tick = 0;
+
+    /**
+     * number of timeouts in the wheel, only used by the timer thread
+     */
+    private int wheelCount = 0;
+
+    private Thread worker = null;
+
+    private volatile boolean running = false;
+
+    /**
+     * lock the timer thread waits on while the wheel is empty
+     */
+    private final Object idleLock = new Object();
+
+    /**
+     * define if the timer thread is waiting for a schedule
+     */
+    private volatile boolean idle = false;
+
+    /**
+     * schedule a task to be run on the timer thread after a delay. The task must not block
+     *
+     * @param task  task to run on expiry
+     * @param delay delay in milliseconds
+     * @return timeout that can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay) {
+
+        start();
+
+        Timeout timeout = new Timeout(task, elapsed() + Math.max(delay, 0));
+        scheduledQueue.add(timeout);
+
+        if (idle) {
+            synchronized (idleLock) {
+                idleLock.notify();
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * stop the timer thread. Pending timeouts are dropped
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    private synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * time elapsed since timer creation (ms)
+     */
+    private long elapsed() {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
+    private void loop() {
+
+        while (running) {
+
+            if (wheelCount == 0 && scheduledQueue.isEmpty()) {
+
+                if (!waitForSchedule()) {
+                    return;
+                }
+                //nothing in the wheel : ticks elapsed while waiting don't need to be processed
+                tick = elapsed() / TICK_DURATION;
+            }
+
+            long deadline = (tick + 1) * TICK_DURATION;
+            long sleep = deadline - elapsed();
+
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            removeCancelled();
+            transferScheduled();
+            expire((int) (tick & WHEEL_MASK));
+            tick++;
+        }
+    }
+
+    /**
+     * wait until a timeout is scheduled
+     *
+     * @return false if timer has been stopped
+     */
+    private boolean waitForSchedule() {
+        synchronized (idleLock) {
+            idle = true;
+            try {
+                while (running && scheduledQueue.isEmpty()) {
+                    idleLock.wait();
+                }
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                idle = false;
+            }
+        }
+        return running;
+    }
+
+    private void transferScheduled() {
+
+        Timeout timeout;
+
+        while ((timeout = scheduledQueue.poll()) != null) {
+
+            if (timeout.state.get() != Timeout.STATE_PENDING) {
+                continue;
+            }
+            long expiryTick = timeout.deadline / TICK_DURATION;
+            timeout.remainingRounds = (expiryTick - tick) / WHEEL_SIZE;
+
+            //deadline already passed : expire on current tick
+            int index = (int) (Math.max(expiryTick, tick) & WHEEL_MASK);
+
+            timeout.bucket = index;
+            timeout.next = wheel[index];
+            if (wheel[index] != null) {
+                wheel[index].prev = timeout;
+            }
+            wheel[index] = timeout;
+            wheelCount++;
+        }
+    }
+
+    private void removeCancelled() {
+
+        Timeout timeout;
+
+        while ((timeout = cancelledQueue.poll()) != null) {
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        wheelCount--;
+    }
+
+    private void expire(int index) {
+
+        Timeout timeout = wheel[index];
+
+        while (timeout != null) {
+
+            Timeout next = timeout.next;
+
+            if (timeout.remainingRounds <= 0) {
+
+                unlink(timeout);
+
+                if (timeout.state.compareAndSet(Timeout.STATE_PENDING, Timeout.STATE_EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "timeout task failure", e);
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * a scheduled task
+     */
+    public class Timeout {
+
+        private final static int STATE_PENDING = 0;
+        private final static int STATE_CANCELLED = 1;
+        private final static int STATE_EXPIRED = 2;
+
+        private final Runnable task;
+
+        /**
+         * expiry date relative to timer creation (ms)
+         */
+        private final long deadline;
+
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+        private long remainingRounds = 0;
+
+        private int bucket = -1;
+
+        private Timeout prev = null;
+        private Timeout next = null;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * cancel this timeout
+         *
+         * @return true if the task won't be run
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                cancelledQueue.add(this);
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+    }
+}
@@ -29,7 +29,12 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.util.Log;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
 
 /**
  * Some gatt processing useful functions
@@ -104,4 +109,85 @@ public class GattUtils {
         return null;
     }
 
+    /**
+     * Build an immutable characteristic index by uuid from service list
+     *
+     * @param serviceList
+     * @return
+     */
+    @SuppressLint("NewApi")
+    public static Map<UUID, BluetoothGattCharacteristic> buildCharacteristicIndex(List<BluetoothGattService> serviceList) {
+
+        Map<UUID, BluetoothGattCharacteristic> index = new HashMap<>();
+
+        for (int i = 0; i < serviceList.size(); i++) {
+            List<BluetoothGattCharacteristic> characList = serviceList.get(i).getCharacteristics();
+            for (int j = 0; j < characList.size(); j++) {
+                if (!index.containsKey(characList.get(j).getUuid())) {
+                    index.put(characList.get(j).getUuid(), characList.get(j));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * Build an immutable descriptor index by characteristic uuid then descriptor uuid from a characteristic index
+     *
+     * @param characteristicIndex
+     * @return
+     */
+    @SuppressLint("NewApi")
+    public static Map<UUID, Map<UUID, BluetoothGattDescriptor>> buildDescriptorIndex(Map<UUID, BluetoothGattCharacteristic> characteristicIndex) {
+
+        Map<UUID, Map<UUID, BluetoothGattDescriptor>> index = new HashMap<>();
+
+        for (Map.Entry<UUID, BluetoothGattCharacteristic> entry : characteristicIndex.entrySet()) {
+
+            List<BluetoothGattDescriptor> descriptorList = entry.getValue().getDescriptors();
+
+            if (descriptorList.size() > 0) {
+                Map<UUID, BluetoothGattDescriptor> descriptorIndex = new HashMap<>();
+                for (int k = 0; k < descriptorList.size(); k++) {
+                    descriptorIndex.put(descriptorList.get(k).getUuid(), descriptorList.get(k));
+                }
+                index.put(entry.getKey(), Collections.unmodifiableMap(descriptorIndex));
+            }
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * Build a signature of a GATT layout (services, characteristics, descriptors with their instance ids and
+     * properties). Two discoveries of the same firmware give the same signature
+     *
+     * @param serviceList
+     * @return
+     */
+    @SuppressLint("NewApi")
+    public static long buildLayoutSignature(List<BluetoothGattService> serviceList) {
+
+        CRC32 crc = new CRC32();
+
+        for (int i = 0; i < serviceList.size(); i++) {
+
+            BluetoothGattService service = serviceList.get(i);
+            crc.update((service.getUuid() + "/" + service.getInstanceId() + ";").getBytes());
+
+            List<BluetoothGattCharacteristic> characList = service.getCharacteristics();
+
+            for (int j = 0; j < characList.size(); j++) {
+
+                BluetoothGattCharacteristic charac = characList.get(j);
+                crc.update((charac.getUuid() + "/" + charac.getInstanceId() + "/" + charac.getProperties() + ";").getBytes());
+
+                List<BluetoothGattDescriptor> descriptorList = charac.getDescriptors();
+
+                for (int k = 0; k < descriptorList.size(); k++) {
+                    crc.update((descriptorList.get(k).getUuid() + ";").getBytes());
+                }
+            }
+        }
+        return crc.getValue();
+    }
 }
@@ -23,15 +23,18 @@
  */
 package com.github.akinaru.bleremote.bluetooth;
 
-import android.bluetooth.BluetoothGatt;
+import android.content.Context;
 
 import com.github.akinaru.bleremote.bluetooth.connection.IBluetoothDeviceConn;
+import com.github.akinaru.bleremote.bluetooth.connection.KnownDeviceStore;
+import com.github.akinaru.bleremote.bluetooth.events.BluetoothEventBus;
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
-import com.github.akinaru.bleremote.utils.ManualResetEvent;
+import com.github.akinaru.bleremote.bluetooth.listener.IReadListener;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Generic interface for bluetooth custom manager
@@ -40,21 +43,103 @@ import java.util.concurrent.ScheduledFuture;
  */
 public interface IBluetoothCustomManager {
 
-    ManualResetEvent getEventManager();
+    /**
+     * release the pending GATT task matching a write/read/descriptor callback
+     *
+     * @param deviceAddress  address of the device the callback comes from
+     * @param characUuid     characteristic uuid
+     * @param descriptorUuid descriptor uuid (null for a characteristic callback)
+     * @param status         GATT status
+     * @return true if a pending task has been released
+     */
+    boolean notifyOperationComplete(String deviceAddress, UUID characUuid, UUID descriptorUuid, int status);
 
-    void broadcastUpdate(String action);
+    /**
+     * release the pending read task matching a read callback with the value read
+     *
+     * @param deviceAddress address of the device the callback comes from
+     * @param characUuid    characteristic uuid
+     * @param value         value read
+     * @param status        GATT status
+     * @return true if a pending task has been released
+     */
+    boolean notifyReadComplete(String deviceAddress, UUID characUuid, byte[] value, int status);
 
-    void broadcastUpdateStringList(String action, ArrayList<String> strList);
+    /**
+     * release the pending write task matching a write callback with the value echoed by the device
+     *
+     * @param deviceAddress address of the device the callback comes from
+     * @param characUuid    characteristic uuid
+     * @param value         characteristic value (echo of a prepared write)
+     * @param status        GATT status
+     * @return true if a pending task has been released
+     */
+    boolean notifyWriteComplete(String deviceAddress, UUID characUuid, byte[] value, int status);
 
-    void writeCharacteristic(String characUid, byte[] value, BluetoothGatt gatt, IPushListener listener,boolean noResponse);
+    /**
+     * release the pending task waiting for the execution of a reliable write
+     *
+     * @param deviceAddress address of the device the callback comes from
+     * @param status        GATT status
+     * @return true if a pending task has been released
+     */
+    boolean notifyReliableWriteComplete(String deviceAddress, int status);
 
-    void readCharacteristic(String characUid, BluetoothGatt gatt);
+    /**
+     * bus dispatching scan, connection and device state events
+     *
+     * @return
+     */
+    BluetoothEventBus getEventBus();
 
-    void writeDescriptor(String descriptorUid, BluetoothGatt gatt, byte[] value, String serviceUid, String characUid);
+    /**
+     * timer shared by all connections for operation and protocol deadlines
+     *
+     * @return
+     */
+    GattTimer getTimer();
 
-    HashMap<String, IBluetoothDeviceConn> getConnectionList();
+    void writeCharacteristic(UUID characUuid, byte[] value, IBluetoothDeviceConn conn, IPushListener listener, boolean noResponse, GattPriority priority);
 
-    HashMap<String, ScheduledFuture<?>> getWaitingMap();
+    /**
+     * write a window of a payload as successive chunks (write without response) in a single queued GATT operation
+     * that gives the queue back to higher priority operations between chunks (see BatchWriteTask)
+     *
+     * @param characUuid characteristic uuid
+     * @param data       payload
+     * @param offset     offset of the window in the payload
+     * @param length     window length
+     * @param chunkSize     max payload length of a single write
+     * @param firstSequence sequence number of the first chunk written as a 1 byte header before each chunk payload (-1 for no header)
+     * @param conn          device connection
+     * @param listener      batch listener
+     */
+    void writeCharacteristicBatch(UUID characUuid, byte[] data, int offset, int length, int chunkSize, int firstSequence, IBluetoothDeviceConn conn, IBatchListener listener);
 
-    void writeLongCharacteristic(String charac, byte[] data, BluetoothGatt gatt, IPushListener listener);
+    void readCharacteristic(UUID characUuid, IBluetoothDeviceConn conn, IReadListener listener);
+
+    void writeDescriptor(UUID descriptorUuid, IBluetoothDeviceConn conn, byte[] value, UUID serviceUuid, UUID characUuid, IPushListener listener);
+
+    Map<String, IBluetoothDeviceConn> getConnectionList();
+
+    ConcurrentHashMap<String, GattTimer.Timeout> getWaitingMap();
+
+    Context getContext();
+
+    /**
+     * last device connected and its GATT layout
+     *
+     * @return
+     */
+    KnownDeviceStore getKnownDeviceStore();
+
+    /**
+     * request disconnection of a device. Only the first request moves the connection to DISCONNECTING
+     *
+     * @param deviceAddress bluetooth device address
+     * @return false if device is unknown
+     */
+    boolean disconnect(String deviceAddress);
+
+    void writeLongCharacteristic(UUID characUuid, byte[] data, IBluetoothDeviceConn conn, IPushListener listener);
 }
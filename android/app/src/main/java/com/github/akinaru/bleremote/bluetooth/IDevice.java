@@ -73,4 +73,9 @@ public interface IDevice {
      * @param characteristic
      */
     void notifyCharacteristicWriteReceived(BluetoothGattCharacteristic characteristic);
+
+    /**
+     * callback called when the link is down (disconnection or forced close)
+     */
+    void notifyDisconnected();
 }
@@ -0,0 +1,78 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Device seen during scan with an exponential moving average of its RSSI
+ *
+ * @author Bertrand Martel
+ */
+public class ScanCandidate {
+
+    /**
+     * weight of a new RSSI sample in the moving average
+     */
+    private final static double RSSI_SMOOTHING = 0.25;
+
+    private BluetoothDevice device;
+
+    private double rssi;
+
+    private int sampleCount;
+
+    public ScanCandidate(BluetoothDevice device, int rssi) {
+        this.device = device;
+        this.rssi = rssi;
+        this.sampleCount = 1;
+    }
+
+    /**
+     * add a RSSI sample to the moving average
+     *
+     * @param sample RSSI in dBm
+     */
+    public void update(int sample) {
+        rssi += RSSI_SMOOTHING * (sample - rssi);
+        sampleCount++;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * smoothed RSSI in dBm
+     *
+     * @return
+     */
+    public int getRssi() {
+        return (int) Math.round(rssi);
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+}
@@ -0,0 +1,128 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * Advertising data parsing used to pre-filter scan results
+ *
+ * @author Bertrand Martel
+ */
+public class ScanRecordUtils {
+
+    /**
+     * AD type : incomplete list of 16 bit service UUID
+     */
+    private final static int AD_TYPE_UUID16_INCOMPLETE = 0x02;
+
+    /**
+     * AD type : complete list of 16 bit service UUID
+     */
+    private final static int AD_TYPE_UUID16_COMPLETE = 0x03;
+
+    /**
+     * AD type : incomplete list of 128 bit service UUID
+     */
+    private final static int AD_TYPE_UUID128_INCOMPLETE = 0x06;
+
+    /**
+     * AD type : complete list of 128 bit service UUID
+     */
+    private final static int AD_TYPE_UUID128_COMPLETE = 0x07;
+
+    /**
+     * Bluetooth base UUID with 16 bit alias zeroed
+     */
+    private final static UUID BASE_UUID = UUID.fromString("00000000-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Check if a raw scan record (advertising data followed by scan response) lists a service UUID. The record is walked
+     * once, without allocation
+     *
+     * @param scanRecord raw scan record
+     * @param uuid       service UUID
+     * @return true if service UUID is advertised
+     */
+    public static boolean hasServiceUuid(byte[] scanRecord, UUID uuid) {
+
+        if (scanRecord == null) {
+            return false;
+        }
+
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        boolean isAlias = (lsb == BASE_UUID.getLeastSignificantBits()) &&
+                ((msb & 0xFFFF0000FFFFFFFFL) == BASE_UUID.getMostSignificantBits());
+
+        int alias = (int) ((msb >>> 32) & 0xFFFF);
+
+        int index = 0;
+
+        while (index < scanRecord.length) {
+
+            int length = scanRecord[index] & 0xFF;
+
+            if (length == 0 || index + length >= scanRecord.length) {
+                break;
+            }
+
+            int type = scanRecord[index + 1] & 0xFF;
+            int start = index + 2;
+            int end = index + 1 + length;
+
+            switch (type) {
+                case AD_TYPE_UUID16_INCOMPLETE:
+                case AD_TYPE_UUID16_COMPLETE:
+                    if (isAlias) {
+                        for (int i = start; i + 2 <= end; i += 2) {
+                            if (((scanRecord[i] & 0xFF) | ((scanRecord[i + 1] & 0xFF) << 8)) == alias) {
+                                return true;
+                            }
+                        }
+                    }
+                    break;
+                case AD_TYPE_UUID128_INCOMPLETE:
+                case AD_TYPE_UUID128_COMPLETE:
+                    for (int i = start; i + 16 <= end; i += 16) {
+                        if (readLittleEndianLong(scanRecord, i) == lsb && readLittleEndianLong(scanRecord, i + 8) == msb) {
+                            return true;
+                        }
+                    }
+                    break;
+            }
+            index = end;
+        }
+        return false;
+    }
+
+    private static long readLittleEndianLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
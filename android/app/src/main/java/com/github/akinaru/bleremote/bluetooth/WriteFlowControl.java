@@ -0,0 +1,383 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import java.util.ArrayDeque;
+
+/**
+ * Credit based pacing of write without response : a limited number of writes are kept in flight and a credit is
+ * released on each onCharacteristicWrite() callback. If callbacks stop arriving, writes are paced with a fixed interval
+ * until a callback shows up again.
+ * <p/>
+ * Nothing blocks : a GATT task finding no credit is deferred and returns, it remains the current operation of its
+ * queue and is resumed on the next write callback or when the flow control deadline (callback timeout or write
+ * interval) expires on the timer
+ *
+ * @author Bertrand Martel
+ */
+public class WriteFlowControl {
+
+    /**
+     * default number of write without response in flight
+     */
+    public final static int DEFAULT_CREDITS = 1;
+
+    /**
+     * time to wait for a write callback before falling back to fixed interval pacing (ms)
+     */
+    private final static int CALLBACK_TIMEOUT = 100;
+
+    /**
+     * interval between writes when no callback is received (ms)
+     */
+    private final static int FALLBACK_INTERVAL = 10;
+
+    /**
+     * max number of attempts to issue a write without response while the stack is busy
+     */
+    private final static int MAX_REFUSED_ATTEMPT = 5;
+
+    private final GattTimer timer;
+
+    private int maxCredits = DEFAULT_CREDITS;
+
+    /**
+     * minimum interval between two writes (ms)
+     */
+    private int interval = 0;
+
+    /**
+     * date of the last credit taken (ms), -1 if none
+     */
+    private long lastAcquire = -1;
+
+    private final long startTime = System.nanoTime();
+
+    private int inFlight = 0;
+
+    /**
+     * true when write callbacks stopped arriving
+     */
+    private boolean fallback = false;
+
+    /**
+     * tasks waiting for a credit or a write callback
+     */
+    private final ArrayDeque<GattTask> waiters = new ArrayDeque<>();
+
+    /**
+     * date at which waiters are woken up when no write callback is received or when the write interval elapses (ms),
+     * 0 if none
+     */
+    private long deadlineDate = 0;
+
+    /**
+     * define if the deadline is a write callback timeout (not a write interval)
+     */
+    private boolean callbackDeadline = false;
+
+    /**
+     * number of deadline checks scheduled on the timer. Checks are not cancelled : a check firing before the deadline
+     * schedules the next one, a check firing with no deadline does nothing
+     */
+    private int armedCount = 0;
+
+    /**
+     * expiry date of the earliest check scheduled on the timer (ms), only valid if armedCount is not 0
+     */
+    private long armedDate = 0;
+
+    /**
+     * deadline check run on the timer thread
+     */
+    private final Runnable deadlineTask = new Runnable() {
+        @Override
+        public void run() {
+            onDeadline();
+        }
+    };
+
+    public WriteFlowControl(GattTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * take a credit if one is available and if the write interval has elapsed. This never blocks
+     *
+     * @return true if a write without response can be issued
+     */
+    public synchronized boolean tryAcquire() {
+
+        if (inFlight >= maxCredits || getIntervalRemaining() > 0) {
+            return false;
+        }
+        inFlight++;
+        lastAcquire = now();
+        return true;
+    }
+
+    /**
+     * take a credit for a task, or defer the task until one may be available (see awaitCredit)
+     *
+     * @param task GATT task being run
+     * @return true if a credit has been taken, false if the task has been deferred and must return from run()
+     */
+    public boolean acquireOrDefer(GattTask task) {
+        if (tryAcquire()) {
+            return true;
+        }
+        awaitCredit(task);
+        return false;
+    }
+
+    /**
+     * the stack refused a write issued with a credit : the credit is given back and the task is deferred until next
+     * write callback, unless it has been refused too many times
+     *
+     * @param task GATT task being run
+     * @return true if the task has been deferred and must return from run(), false if the write has failed
+     */
+    public boolean onWriteRefused(GattTask task) {
+
+        cancel();
+
+        if (task.nextAttempt() >= MAX_REFUSED_ATTEMPT) {
+            task.resetAttempt();
+            return false;
+        }
+        awaitRelease(task);
+        return true;
+    }
+
+    /**
+     * defer a task until a credit may be available : it is resumed on next write callback or when the deadline expires.
+     * The task must return from run() and call tryAcquire() again when resumed
+     *
+     * @param task GATT task being run
+     */
+    public void awaitCredit(GattTask task) {
+
+        task.defer();
+
+        synchronized (this) {
+
+            if (inFlight >= maxCredits) {
+                waiters.addLast(task);
+                armDeadline(fallback ? FALLBACK_INTERVAL : CALLBACK_TIMEOUT, true);
+                return;
+            }
+            long remaining = getIntervalRemaining();
+
+            if (remaining > 0) {
+                waiters.addLast(task);
+                armDeadline(remaining, false);
+                return;
+            }
+        }
+        task.resume();
+    }
+
+    /**
+     * defer a task until next write callback (or callback timeout). Used when the stack refused a write
+     *
+     * @param task GATT task being run
+     */
+    public synchronized void awaitRelease(GattTask task) {
+        task.defer();
+        waiters.addLast(task);
+        armDeadline(CALLBACK_TIMEOUT, true);
+    }
+
+    /**
+     * release a credit when a write callback is received
+     */
+    public void release() {
+        int count;
+        synchronized (this) {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+            fallback = false;
+            count = takeWaiters();
+        }
+        resume(count);
+    }
+
+    /**
+     * give back a credit that has not been used (write has not been issued)
+     */
+    public void cancel() {
+        int count;
+        synchronized (this) {
+            if (inFlight > 0) {
+                inFlight--;
+            }
+            count = takeWaiters();
+        }
+        resume(count);
+    }
+
+    /**
+     * drop all credits in flight (eg on disconnection)
+     */
+    public void reset() {
+        int count;
+        synchronized (this) {
+            inFlight = 0;
+            fallback = false;
+            count = takeWaiters();
+        }
+        resume(count);
+    }
+
+    public synchronized int getMaxCredits() {
+        return maxCredits;
+    }
+
+    /**
+     * set the number of write without response kept in flight
+     *
+     * @param maxCredits
+     */
+    public void setMaxCredits(int maxCredits) {
+        int count;
+        synchronized (this) {
+            this.maxCredits = (maxCredits > 0) ? maxCredits : 1;
+            count = takeWaiters();
+        }
+        resume(count);
+    }
+
+    public synchronized int getInterval() {
+        return interval;
+    }
+
+    /**
+     * set minimum interval between two writes without response
+     *
+     * @param interval interval in milliseconds (0 to only rely on credits)
+     */
+    public synchronized void setInterval(int interval) {
+        this.interval = (interval > 0) ? interval : 0;
+    }
+
+    public synchronized boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * called on the timer thread when no write callback has been received or when the write interval has elapsed
+     */
+    private void onDeadline() {
+        int count;
+        synchronized (this) {
+            armedCount--;
+            armedDate = Long.MAX_VALUE;
+
+            if (deadlineDate == 0 || waiters.isEmpty()) {
+                return;
+            }
+            long remaining = deadlineDate - now();
+
+            if (remaining > 0) {
+                //deadline has been pushed back since this check was scheduled
+                schedule(deadlineDate, remaining);
+                return;
+            }
+            if (callbackDeadline && inFlight >= maxCredits) {
+                //no callback received : consider writes in flight as sent
+                fallback = true;
+                inFlight = 0;
+            }
+            count = takeWaiters();
+        }
+        resume(count);
+    }
+
+    /**
+     * set the date waiters are woken up at (lock held). The timer is only scheduled when no earlier check is pending so
+     * deferring a task on each chunk doesn't create a timeout each time
+     *
+     * @param delay    delay from now (ms)
+     * @param callback true if this is a write callback timeout
+     */
+    private void armDeadline(long delay, boolean callback) {
+
+        if (deadlineDate != 0) {
+            return;
+        }
+        callbackDeadline = callback;
+        deadlineDate = now() + delay;
+
+        if (armedCount == 0 || armedDate > deadlineDate) {
+            schedule(deadlineDate, delay);
+        }
+    }
+
+    private void schedule(long date, long delay) {
+        armedCount++;
+        armedDate = date;
+        timer.schedule(deadlineTask, delay);
+    }
+
+    /**
+     * disarm the deadline (lock held), waiters are taken by resume()
+     *
+     * @return number of tasks to resume
+     */
+    private int takeWaiters() {
+        deadlineDate = 0;
+        return waiters.size();
+    }
+
+    /**
+     * resume deferred tasks one by one, outside of the lock. Only tasks waiting when the credit has been released are
+     * resumed : a resumed task deferring again waits for the next release
+     *
+     * @param count number of tasks to resume
+     */
+    private void resume(int count) {
+        for (int i = 0; i < count; i++) {
+            GattTask task;
+            synchronized (this) {
+                task = waiters.pollFirst();
+            }
+            if (task == null) {
+                return;
+            }
+            task.resume();
+        }
+    }
+
+    private long getIntervalRemaining() {
+        if (interval <= 0 || lastAcquire < 0) {
+            return 0;
+        }
+        return lastAcquire + interval - now();
+    }
+
+    private long now() {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+}
@@ -29,21 +29,38 @@ import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
+import android.os.Build;
 import android.util.Log;
 
+import com.github.akinaru.bleremote.bluetooth.ChunkBufferPool;
+import com.github.akinaru.bleremote.bluetooth.GattPriority;
+import com.github.akinaru.bleremote.bluetooth.GattQueue;
+import com.github.akinaru.bleremote.bluetooth.GattTask;
+import com.github.akinaru.bleremote.bluetooth.GattTimer;
+import com.github.akinaru.bleremote.bluetooth.GattUtils;
 import com.github.akinaru.bleremote.bluetooth.IBluetoothCustomManager;
 import com.github.akinaru.bleremote.bluetooth.IDevice;
+import com.github.akinaru.bleremote.bluetooth.WriteFlowControl;
 import com.github.akinaru.bleremote.bluetooth.device.BleDisplayDevice;
-import com.github.akinaru.bleremote.bluetooth.events.BluetoothEvents;
+import com.github.akinaru.bleremote.bluetooth.events.BluetoothObject;
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
 import com.github.akinaru.bleremote.bluetooth.listener.IDeviceInitListener;
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
-import com.github.akinaru.bleremote.constant.JsonConstants;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.ArrayList;
+import com.github.akinaru.bleremote.bluetooth.listener.IReadListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceEvent;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Bluetooth device connection management
@@ -54,7 +71,50 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
 
     private final static String TAG = BluetoothDeviceConn.class.getName();
 
-    public final static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    public final static UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * default ATT MTU
+     */
+    public final static int DEFAULT_MTU = 23;
+
+    /**
+     * ATT MTU requested after service discovery (API 21+)
+     */
+    private final static int REQUEST_MTU = 185;
+
+    /**
+     * ATT header length in a write request
+     */
+    private final static int ATT_HEADER_LENGTH = 3;
+
+    /**
+     * time to wait for onMtuChanged before initializing the device with the current MTU (ms)
+     */
+    private final static int MTU_TIMEOUT = 2000;
+
+    // set init pool size
+    private static final int CORE_POOL_SIZE = 1;
+
+    // set max pool size
+    private static final int MAXIMUM_POOL_SIZE = 1;
+
+    // Sets the amount of time an idle thread will wait for a task before terminating
+    private static final int KEEP_ALIVE_TIME = 5;
+
+    // set time unit in seconds
+    private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
+
+    /*
+     * thread running GATT tasks of this connection. It is not held while a task waits for its GATT callback
+     */
+    private ThreadPoolExecutor gattThreadPool = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
+            KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * GATT operations ordered by priority class, then by submission order (see GattTask)
+     */
+    private GattQueue gattQueue = new GattQueue(gattThreadPool);
 
     /**
      * Bluetooth callback for gatt layer interaction
@@ -77,7 +137,60 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
 
     private IDevice device = null;
 
-    private boolean connected = false;
+    /**
+     * connection lifecycle state
+     */
+    private final AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.DISCOVERED);
+
+    /**
+     * date at which connection has been requested, used to measure connection to ready latency (ms)
+     */
+    private long connectionDate = 0;
+
+    /**
+     * negotiated ATT MTU
+     */
+    private volatile int mtu = DEFAULT_MTU;
+
+    /**
+     * credits for write without response
+     */
+    private WriteFlowControl writeFlowControl;
+
+    /**
+     * number of timed out writes with response by characteristic, whose callback may still be received
+     */
+    private final Map<UUID, Integer> lateWriteCallbacks = new HashMap<>();
+
+    /**
+     * GATT events trace
+     */
+    private TraceRing traceRing = new TraceRing();
+
+    /**
+     * chunk buffers reused by batch writes (GATT operation queue only)
+     */
+    private ChunkBufferPool chunkBufferPool = new ChunkBufferPool(REQUEST_MTU - ATT_HEADER_LENGTH);
+
+    /**
+     * number of pending high connection priority requests
+     */
+    private int highPriorityCount = 0;
+
+    /**
+     * deadline of the MTU request, the device is initialized by the first of onMtuChanged and this deadline
+     */
+    private volatile GattTimer.Timeout mtuTimeout = null;
+
+    /**
+     * characteristic index built at service discovery
+     */
+    private volatile Map<UUID, BluetoothGattCharacteristic> characteristicIndex = Collections.emptyMap();
+
+    /**
+     * descriptor index (by characteristic then descriptor) built at service discovery
+     */
+    private volatile Map<UUID, Map<UUID, BluetoothGattDescriptor>> descriptorIndex = Collections.emptyMap();
 
     /**
      * Build Bluetooth device connection
@@ -89,6 +202,10 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
         this.deviceAddr = address;
         this.deviceName = deviceName;
         this.manager = manager;
+        this.writeFlowControl = new WriteFlowControl(manager.getTimer());
+
+        //dont keep an idle thread for each connection
+        gattThreadPool.allowCoreThreadTimeOut(true);
 
         gattCallback = new BluetoothGattCallback() {
             @Override
@@ -98,36 +215,46 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
 
                     Log.v(TAG, "Connected to GATT server.");
-                    Log.v(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+
+                    if (!compareAndSetState(ConnectionState.CONNECTING, ConnectionState.DISCOVERING)) {
+                        //disconnection has been requested meanwhile
+                        Log.v(TAG, "connection no longer expected in state " + getState());
+                        return;
+                    }
+
+                    if (!characteristicIndex.isEmpty() &&
+                            manager.getKnownDeviceStore().matchesLayout(deviceAddr, GattUtils.buildLayoutSignature(gatt.getServices()))) {
+                        //warm reconnection : cached services belong to the last device, check the device still agrees
+                        probeLayout(gatt);
+                    } else {
+                        Log.v(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+                    }
 
                 } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
 
-                    connected = false;
                     Log.v(TAG, "Disconnected from GATT server.");
 
-                    try {
-                        JSONObject object = new JSONObject();
-                        object.put(JsonConstants.BT_ADDRESS, getAddress());
-                        object.put(JsonConstants.BT_DEVICE_NAME, getDeviceName());
+                    writeFlowControl.reset();
+                    clearLateWriteCallbacks();
+                    cancelMtuTimeout();
+                    mtu = DEFAULT_MTU;
+                    clearHighPriority();
 
-                        ArrayList<String> values = new ArrayList<String>();
-                        values.add(object.toString());
+                    GattTimer.Timeout forcedClose = manager.getWaitingMap().remove(deviceAddr);
 
-                        //when device is fully intitialized broadcast service discovery
-                        manager.broadcastUpdateStringList(BluetoothEvents.BT_EVENT_DEVICE_DISCONNECTED, values);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
+                    if (forcedClose != null) {
+                        forcedClose.cancel();
                     }
 
-                    if (manager.getWaitingMap().containsKey(deviceAddr)) {
-                        manager.getWaitingMap().get(deviceAddr).cancel(true);
-                        manager.getWaitingMap().remove(deviceAddr);
+                    //disconnection may already have been notified by a forced close
+                    if (state.getAndSet(ConnectionState.CLOSED) != ConnectionState.CLOSED) {
+                        if (device != null) {
+                            device.notifyDisconnected();
+                        }
+                        manager.getEventBus().postDeviceDisconnected(new BluetoothObject(getAddress(), getDeviceName(), -1));
                     }
 
-                    if (BluetoothDeviceConn.this.gatt != null) {
-                        Log.v(TAG, "connection close clean");
-                        BluetoothDeviceConn.this.gatt.close();
-                    }
+                    //gatt is kept open with its discovered services for a warm reconnection (see close())
                 }
             }
 
@@ -137,46 +264,38 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
 
                 if (status == BluetoothGatt.GATT_SUCCESS) {
 
-                    Runnable test = new Runnable() {
-                        @Override
-                        public void run() {
-
-                            //you can improve this by using reflection
-                            device = new BleDisplayDevice(BluetoothDeviceConn.this);
-
-                            device.addInitListener(new IDeviceInitListener() {
-                                @Override
-                                public void onInit() {
-                                    try {
-                                        JSONObject object = new JSONObject();
-                                        object.put(JsonConstants.BT_ADDRESS, getAddress());
-                                        object.put(JsonConstants.BT_DEVICE_NAME, getDeviceName());
-
-                                        ArrayList<String> values = new ArrayList<String>();
-                                        values.add(object.toString());
-
-                                        connected = true;
-                                        //when device is fully intitialized broadcast service discovery
-                                        manager.broadcastUpdateStringList(BluetoothEvents.BT_EVENT_DEVICE_CONNECTED, values);
-                                    } catch (JSONException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                            });
-                            device.init();
-                        }
-                    };
-                    Thread testThread = new Thread(test);
-                    testThread.start();
+                    characteristicIndex = GattUtils.buildCharacteristicIndex(gatt.getServices());
+                    descriptorIndex = GattUtils.buildDescriptorIndex(characteristicIndex);
+
+                    onGattReady(gatt);
 
                 } else {
                     Log.w(TAG, "onServicesDiscovered received: " + status);
                 }
             }
 
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    BluetoothDeviceConn.this.mtu = mtu;
+                }
+                Log.v(TAG, "mtu : " + BluetoothDeviceConn.this.mtu + " status : " + status);
+
+                //device already initialized if the request timed out (new MTU applies to next uploads)
+                if (cancelMtuTimeout()) {
+                    initDevice();
+                }
+            }
+
             @Override
             public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                manager.getEventManager().set();
+                traceRing.record(TraceEvent.GATT_WRITE_CALLBACK, 0, 0, status);
+                if (!manager.notifyWriteComplete(deviceAddr, characteristic.getUuid(), characteristic.getValue(), status) &&
+                        !consumeLateWriteCallback(characteristic.getUuid())) {
+                    //callback of a write without response
+                    writeFlowControl.release();
+                }
                 if (device != null) {
                     device.notifyCharacteristicWriteReceived(characteristic);
                 }
@@ -187,31 +306,160 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
             public void onCharacteristicRead(BluetoothGatt gatt,
                                              BluetoothGattCharacteristic characteristic,
                                              int status) {
-                manager.getEventManager().set();
+                traceRing.record(TraceEvent.GATT_READ_CALLBACK, 0, 0, status);
+                manager.notifyReadComplete(deviceAddr, characteristic.getUuid(), characteristic.getValue(), status);
                 if (device != null) {
-                    Log.v(TAG, "onCharacteristicRead");
                     device.notifyCharacteristicReadReceived(characteristic);
                 }
             }
 
+            @Override
+            public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+                traceRing.record(TraceEvent.GATT_WRITE_CALLBACK, 0, 0, status);
+                manager.notifyReliableWriteComplete(deviceAddr, status);
+            }
+
             @Override
             public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-                manager.getEventManager().set();
+                traceRing.record(TraceEvent.GATT_DESCRIPTOR_CALLBACK, 0, 0, status);
+                manager.notifyOperationComplete(deviceAddr, descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), status);
             }
 
             @Override
             // Characteristic notification
             public void onCharacteristicChanged(BluetoothGatt gatt,
                                                 BluetoothGattCharacteristic characteristic) {
-                manager.getEventManager().set();
+                traceRing.record(TraceEvent.GATT_NOTIFICATION, 0, (characteristic.getValue() != null) ? characteristic.getValue().length : 0, 0);
                 if (device != null) {
-                    Log.v(TAG, "onCharacteristicChanged");
                     device.notifyCharacteristicChangeReceived(characteristic);
                 }
             }
         };
     }
 
+    /**
+     * check cached handles against the device before skipping service discovery : the signature of the cached services
+     * can't tell if the device database has changed (no service changed characteristic on the device), so a known
+     * characteristic is read through its cached handle. Services are discovered again if the read fails or returns an
+     * unexpected value
+     *
+     * @param gatt gatt connection
+     */
+    private void probeLayout(final BluetoothGatt gatt) {
+
+        manager.readCharacteristic(BleDisplayDevice.LAYOUT_PROBE, this, new IReadListener() {
+            @Override
+            public void onReadSuccess(byte[] value) {
+                if (value != null && value.length == BleDisplayDevice.LAYOUT_PROBE_LENGTH) {
+                    Log.v(TAG, "same GATT layout, skipping service discovery");
+                    onGattReady(gatt);
+                } else {
+                    rediscover(gatt);
+                }
+            }
+
+            @Override
+            public void onReadFailure() {
+                rediscover(gatt);
+            }
+        });
+    }
+
+    /**
+     * drop cached handles and discover services again
+     *
+     * @param gatt gatt connection
+     */
+    private void rediscover(BluetoothGatt gatt) {
+        if (getState() != ConnectionState.DISCOVERING || gatt != this.gatt) {
+            return;
+        }
+        Log.v(TAG, "GATT layout probe failed");
+        characteristicIndex = Collections.emptyMap();
+        descriptorIndex = Collections.emptyMap();
+        Log.v(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+    }
+
+    /**
+     * services are known : negotiate MTU then initialize device
+     *
+     * @param gatt gatt connection
+     */
+    @SuppressLint("NewApi")
+    private void onGattReady(BluetoothGatt gatt) {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+
+            //armed before the request so that the callback always finds it
+            mtuTimeout = manager.getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (getState() == ConnectionState.DISCOVERING) {
+                        Log.w(TAG, "no mtu callback received, keeping mtu " + mtu);
+                        initDevice();
+                    }
+                }
+            }, MTU_TIMEOUT);
+
+            if (gatt.requestMtu(REQUEST_MTU)) {
+                Log.v(TAG, "requesting mtu " + REQUEST_MTU);
+                return;
+            }
+            cancelMtuTimeout();
+        }
+        initDevice();
+    }
+
+    /**
+     * cancel the MTU request deadline
+     *
+     * @return true if the deadline was pending (device not initialized by the timer)
+     */
+    private boolean cancelMtuTimeout() {
+        GattTimer.Timeout timeout = mtuTimeout;
+        mtuTimeout = null;
+        return timeout != null && timeout.cancel();
+    }
+
+    /**
+     * build device implementation and initialize it once gatt layer is ready
+     */
+    private void initDevice() {
+
+        //you can improve this by using reflection
+        device = new BleDisplayDevice(BluetoothDeviceConn.this);
+
+        device.addInitListener(new IDeviceInitListener() {
+            @Override
+            public void onInit() {
+
+                Log.v(TAG, "device ready " + (System.currentTimeMillis() - connectionDate) + "ms after connection request");
+
+                manager.getKnownDeviceStore().save(getAddress(), getDeviceName(), GattUtils.buildLayoutSignature(gatt.getServices()));
+
+                //when device is fully intitialized notify connection
+                if (compareAndSetState(ConnectionState.DISCOVERING, ConnectionState.READY)) {
+                    manager.getEventBus().postDeviceConnected(new BluetoothObject(getAddress(), getDeviceName(), -1));
+                }
+            }
+
+            @Override
+            public void onInitFailure() {
+
+                Log.e(TAG, "device initialization failed, disconnecting");
+
+                //cached handles may be wrong : discover services on next connection
+                characteristicIndex = Collections.emptyMap();
+                descriptorIndex = Collections.emptyMap();
+
+                //connection is never notified as connected, a disconnection is notified instead
+                disconnect();
+            }
+        });
+        //init doesn't block : CCCD writes are queued and onInit is called on the last acknowledgement
+        device.init();
+    }
+
     public BluetoothGattCallback getGattCallback() {
         return gattCallback;
     }
@@ -233,28 +481,78 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
 
     @Override
     public boolean isConnected() {
-        return connected;
+        ConnectionState current = state.get();
+        return current == ConnectionState.READY || current == ConnectionState.UPLOADING;
+    }
+
+    @Override
+    public ConnectionState getState() {
+        return state.get();
+    }
+
+    @Override
+    public boolean compareAndSetState(ConnectionState expect, ConnectionState update) {
+        if (state.compareAndSet(expect, update)) {
+            Log.v(TAG, deviceAddr + " : " + expect + " -> " + update);
+            return true;
+        }
+        return false;
     }
 
     @SuppressLint("NewApi")
     @Override
-    public void writeCharacteristic(String service, String charac, byte[] value, IPushListener listener, boolean noResponse) {
-        manager.writeCharacteristic(charac, value, gatt, listener, noResponse);
+    public void writeCharacteristic(UUID service, UUID charac, byte[] value, IPushListener listener, boolean noResponse) {
+        manager.writeCharacteristic(charac, value, this, listener, noResponse, GattPriority.NORMAL);
+    }
+
+    @Override
+    public void writeCharacteristic(UUID service, UUID charac, byte[] value, IPushListener listener, boolean noResponse, GattPriority priority) {
+        manager.writeCharacteristic(charac, value, this, listener, noResponse, priority);
+    }
+
+    @Override
+    public void writeCharacteristicBatch(UUID service, UUID charac, byte[] data, int offset, int length, int chunkSize, IBatchListener listener) {
+        manager.writeCharacteristicBatch(charac, data, offset, length, chunkSize, -1, this, listener);
+    }
+
+    @Override
+    public void writeCharacteristicBatch(UUID service, UUID charac, byte[] data, int offset, int length, int chunkSize, int firstSequence, IBatchListener listener) {
+        manager.writeCharacteristicBatch(charac, data, offset, length, chunkSize, firstSequence, this, listener);
+    }
+
+    @Override
+    public int cancelPendingWrites(UUID charac) {
+
+        List<GattTask> removed = gattQueue.remove(charac);
+
+        for (int i = 0; i < removed.size(); i++) {
+            if (removed.get(i).getListener() != null) {
+                removed.get(i).getListener().onPushFailure();
+            }
+        }
+        Log.v(TAG, "cancelled " + removed.size() + " pending writes for " + charac);
+        return removed.size();
     }
 
     @SuppressLint("NewApi")
     @Override
-    public void readCharacteristic(String service, String charac) {
-        manager.readCharacteristic(charac, gatt);
+    public void readCharacteristic(UUID service, UUID charac) {
+        manager.readCharacteristic(charac, this, null);
+    }
+
+    @Override
+    public void readCharacteristic(UUID service, UUID charac, IReadListener listener) {
+        manager.readCharacteristic(charac, this, listener);
     }
 
     @SuppressLint("NewApi")
     @Override
     public void enableDisableNotification(UUID service, UUID charac, boolean enable) {
 
-        if (gatt.getService(service) != null &&
-                gatt.getService(service).getCharacteristic(charac) != null)
-            gatt.setCharacteristicNotification(gatt.getService(service).getCharacteristic(charac), enable);
+        BluetoothGattCharacteristic characteristic = getCharacteristic(charac);
+
+        if (characteristic != null)
+            gatt.setCharacteristicNotification(characteristic, enable);
         else {
             Log.e(TAG, "error inconsistent service or characteristic");
         }
@@ -262,10 +560,71 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
 
     @SuppressLint("NewApi")
     @Override
-    public void enableGattNotifications(String serviceUid, String characUid) {
+    public void enableGattNotifications(UUID service, UUID charac) {
+        manager.writeDescriptor(CLIENT_CHARACTERISTIC_CONFIG, this, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, service, charac, null);
+    }
+
+    @Override
+    public void enableGattNotifications(UUID service, UUID[] characs, final IPushListener listener) {
+
+        if (characs.length == 0) {
+            if (listener != null) {
+                listener.onPushSuccess();
+            }
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(characs.length);
+        final AtomicBoolean failure = new AtomicBoolean(false);
+
+        IPushListener ackListener = new IPushListener() {
+
+            @Override
+            public void onPushFailure() {
+                failure.set(true);
+                onAck();
+            }
+
+            @Override
+            public void onPushSuccess() {
+                onAck();
+            }
+
+            private void onAck() {
+                if (remaining.decrementAndGet() == 0 && listener != null) {
+                    if (failure.get()) {
+                        listener.onPushFailure();
+                    } else {
+                        listener.onPushSuccess();
+                    }
+                }
+            }
+        };
+
+        for (int i = 0; i < characs.length; i++) {
+            //local only : no GATT operation
+            enableDisableNotification(service, characs[i], true);
+            manager.writeDescriptor(CLIENT_CHARACTERISTIC_CONFIG, this, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, service, characs[i], ackListener);
+        }
+    }
+
+    @Override
+    public long getConnectionDate() {
+        return connectionDate;
+    }
+
+    @Override
+    public BluetoothGattCharacteristic getCharacteristic(UUID charac) {
+        return characteristicIndex.get(charac);
+    }
 
-        String descriptorStr = CLIENT_CHARACTERISTIC_CONFIG;
-        manager.writeDescriptor(descriptorStr, gatt, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, serviceUid, characUid);
+    @Override
+    public BluetoothGattDescriptor getDescriptor(UUID charac, UUID descriptor) {
+        Map<UUID, BluetoothGattDescriptor> descriptorList = descriptorIndex.get(charac);
+        if (descriptorList != null) {
+            return descriptorList.get(descriptor);
+        }
+        return null;
     }
 
     public BluetoothGatt getGatt() {
@@ -273,6 +632,7 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
     }
 
     public void setGatt(BluetoothGatt gatt) {
+        this.connectionDate = System.currentTimeMillis();
         this.gatt = gatt;
     }
 
@@ -281,26 +641,141 @@ public class BluetoothDeviceConn implements IBluetoothDeviceConn {
         return manager;
     }
 
+    @Override
+    public GattQueue getGattQueue() {
+        return gattQueue;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public int getMaxPayload() {
+        return mtu - ATT_HEADER_LENGTH;
+    }
+
+    @Override
+    public WriteFlowControl getWriteFlowControl() {
+        return writeFlowControl;
+    }
+
+    @Override
+    public synchronized void expectLateWriteCallback(UUID charac) {
+        Integer count = lateWriteCallbacks.get(charac);
+        lateWriteCallbacks.put(charac, (count != null) ? count + 1 : 1);
+    }
+
+    /**
+     * check if a write callback matching no pending task is the late callback of a timed out write with response. If
+     * this late callback is never received, the callback of the next write without response on this characteristic is
+     * ignored instead : its credit is recovered by the flow control callback timeout
+     *
+     * @param charac characteristic uuid
+     * @return true if the callback belongs to a timed out write with response
+     */
+    private synchronized boolean consumeLateWriteCallback(UUID charac) {
+
+        if (lateWriteCallbacks.isEmpty()) {
+            return false;
+        }
+        Integer count = lateWriteCallbacks.get(charac);
+
+        if (count == null) {
+            return false;
+        }
+        if (count > 1) {
+            lateWriteCallbacks.put(charac, count - 1);
+        } else {
+            lateWriteCallbacks.remove(charac);
+        }
+        Log.v(TAG, "late callback of a timed out write on " + charac);
+        return true;
+    }
+
+    private synchronized void clearLateWriteCallbacks() {
+        lateWriteCallbacks.clear();
+    }
+
+    @Override
+    public synchronized void requestHighPriority() {
+        highPriorityCount++;
+        if (highPriorityCount == 1) {
+            setConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+    }
+
+    @Override
+    public synchronized void releaseHighPriority() {
+        if (highPriorityCount == 0) {
+            Log.e(TAG, "no high priority request to release");
+            return;
+        }
+        highPriorityCount--;
+        if (highPriorityCount == 0) {
+            setConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+    }
+
+    /**
+     * drop all high priority requests (link is gone so priority is reset by the stack)
+     */
+    private synchronized void clearHighPriority() {
+        highPriorityCount = 0;
+    }
+
+    @SuppressLint("NewApi")
+    private void setConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt != null) {
+            Log.v(TAG, "request connection priority " + priority + " : " + gatt.requestConnectionPriority(priority));
+        }
+    }
+
+    @Override
+    public ChunkBufferPool getChunkBufferPool() {
+        return chunkBufferPool;
+    }
+
+    @Override
+    public TraceRing getTraceRing() {
+        return traceRing;
+    }
+
     @Override
     public IDevice getDevice() {
         return device;
     }
 
-    @SuppressLint("NewApi")
     @Override
     public void disconnect() {
+        manager.disconnect(deviceAddr);
+    }
+
+    @Override
+    public boolean reconnect() {
+        //background connection keeping the cached layout, see IBluetoothDeviceConn#reconnect
         if (gatt != null) {
-            gatt.disconnect();
+            connectionDate = System.currentTimeMillis();
+            return gatt.connect();
         }
+        return false;
     }
 
     @Override
-    public void setConnected(boolean state) {
-        connected = state;
+    public void close() {
+        clearHighPriority();
+        characteristicIndex = Collections.emptyMap();
+        descriptorIndex = Collections.emptyMap();
+        if (gatt != null) {
+            Log.v(TAG, "connection close");
+            gatt.close();
+            gatt = null;
+        }
     }
 
     @Override
-    public void writeLongCharacteristic(String service, String charac, byte[] data, IPushListener listener) {
-        manager.writeLongCharacteristic(charac, data, gatt, listener);
+    public void writeLongCharacteristic(UUID service, UUID charac, byte[] data, IPushListener listener) {
+        manager.writeLongCharacteristic(charac, data, this, listener);
     }
 }
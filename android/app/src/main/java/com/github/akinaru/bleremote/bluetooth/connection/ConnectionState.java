@@ -0,0 +1,68 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.connection;
+
+/**
+ * Lifecycle of a device connection. Transitions are atomic (compare and set) so that a single thread wins a
+ * connection or disconnection request
+ *
+ * @author Bertrand Martel
+ */
+public enum ConnectionState {
+
+    /**
+     * registered, no connection requested yet
+     */
+    DISCOVERED,
+
+    /**
+     * GATT connection requested
+     */
+    CONNECTING,
+
+    /**
+     * link is up : services discovery, MTU negotiation and device initialization
+     */
+    DISCOVERING,
+
+    /**
+     * device initialized and ready for operations
+     */
+    READY,
+
+    /**
+     * bitmap upload in progress
+     */
+    UPLOADING,
+
+    /**
+     * disconnection requested, waiting for the link to go down
+     */
+    DISCONNECTING,
+
+    /**
+     * link is down, connection can be requested again
+     */
+    CLOSED
+}
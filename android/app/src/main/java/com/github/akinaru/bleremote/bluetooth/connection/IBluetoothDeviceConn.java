@@ -24,10 +24,19 @@
 package com.github.akinaru.bleremote.bluetooth.connection;
 
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 
+import com.github.akinaru.bleremote.bluetooth.ChunkBufferPool;
+import com.github.akinaru.bleremote.bluetooth.GattPriority;
+import com.github.akinaru.bleremote.bluetooth.GattQueue;
 import com.github.akinaru.bleremote.bluetooth.IBluetoothCustomManager;
 import com.github.akinaru.bleremote.bluetooth.IDevice;
+import com.github.akinaru.bleremote.bluetooth.WriteFlowControl;
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
+import com.github.akinaru.bleremote.bluetooth.listener.IReadListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
 
 import java.util.UUID;
 
@@ -49,8 +58,29 @@ public interface IBluetoothDeviceConn {
 
     BluetoothGatt getBluetoothGatt();
 
+    /**
+     * device is ready or uploading
+     *
+     * @return
+     */
     boolean isConnected();
 
+    /**
+     * current lifecycle state of this connection
+     *
+     * @return
+     */
+    ConnectionState getState();
+
+    /**
+     * atomically move to a new state if current state is the expected one
+     *
+     * @param expect expected current state
+     * @param update new state
+     * @return true if state has been changed
+     */
+    boolean compareAndSetState(ConnectionState expect, ConnectionState update);
+
     /**
      * write to a characteristic
      *
@@ -58,7 +88,55 @@ public interface IBluetoothDeviceConn {
      * @param characteristicSmartliteSettingsUUID
      * @param value
      */
-    void writeCharacteristic(String serviceSmartliteControlUUID, String characteristicSmartliteSettingsUUID, byte[] value, IPushListener listener,boolean noResponse);
+    void writeCharacteristic(UUID serviceSmartliteControlUUID, UUID characteristicSmartliteSettingsUUID, byte[] value, IPushListener listener, boolean noResponse);
+
+    /**
+     * write to a characteristic with a given priority in the GATT operation queue
+     *
+     * @param service
+     * @param charac
+     * @param value
+     * @param listener
+     * @param noResponse
+     * @param priority   priority class of this write
+     */
+    void writeCharacteristic(UUID service, UUID charac, byte[] value, IPushListener listener, boolean noResponse, GattPriority priority);
+
+    /**
+     * write a window of a payload as successive chunks (write without response) in a single queued GATT operation
+     * that gives the queue back to higher priority operations between chunks (see BatchWriteTask)
+     *
+     * @param service   service uuid
+     * @param charac    characteristic uuid
+     * @param data      payload
+     * @param offset    offset of the window in the payload
+     * @param length    window length
+     * @param chunkSize max length of a single write
+     * @param listener  batch listener
+     */
+    void writeCharacteristicBatch(UUID service, UUID charac, byte[] data, int offset, int length, int chunkSize, IBatchListener listener);
+
+    /**
+     * same as writeCharacteristicBatch with a 1 byte sequence number written before each chunk payload
+     *
+     * @param service       service uuid
+     * @param charac        characteristic uuid
+     * @param data          payload
+     * @param offset        offset of the window in the payload
+     * @param length        window length
+     * @param chunkSize     max payload length of a single write (header excluded)
+     * @param firstSequence sequence number of the first chunk, incremented for each chunk
+     * @param listener      batch listener
+     */
+    void writeCharacteristicBatch(UUID service, UUID charac, byte[] data, int offset, int length, int chunkSize, int firstSequence, IBatchListener listener);
+
+    /**
+     * remove writes to a characteristic still waiting in the GATT operation queue. Their listeners are notified of a failure
+     *
+     * @param charac characteristic uuid
+     * @return number of writes removed
+     */
+    int cancelPendingWrites(UUID charac);
 
     /**
      * read from a characteristic
@@ -66,19 +144,135 @@ public interface IBluetoothDeviceConn {
      * @param serviceName
      * @param characteristicName
      */
-    void readCharacteristic(String serviceName, String characteristicName);
+    void readCharacteristic(UUID serviceName, UUID characteristicName);
+
+    /**
+     * read from a characteristic. The GATT queue is not held while waiting for the value
+     *
+     * @param service  service uuid
+     * @param charac   characteristic uuid
+     * @param listener value read, failure or timeout of this request
+     */
+    void readCharacteristic(UUID service, UUID charac, IReadListener listener);
 
     void enableDisableNotification(UUID service, UUID charac, boolean enable);
 
-    void enableGattNotifications(String service, String charac);
+    void enableGattNotifications(UUID service, UUID charac);
+
+    /**
+     * enable notifications of several characteristics : all CCCD writes are queued at once and chained on their
+     * onDescriptorWrite callbacks
+     *
+     * @param service  service uuid
+     * @param characs  characteristic uuids
+     * @param listener called once the last CCCD write has been acknowledged (failure if any of them failed)
+     */
+    void enableGattNotifications(UUID service, UUID[] characs, IPushListener listener);
+
+    /**
+     * date at which connection has been requested (ms)
+     *
+     * @return
+     */
+    long getConnectionDate();
+
+    /**
+     * retrieve a characteristic from the index built at service discovery
+     *
+     * @param charac characteristic uuid
+     * @return characteristic or null if not discovered
+     */
+    BluetoothGattCharacteristic getCharacteristic(UUID charac);
+
+    /**
+     * retrieve a descriptor from the index built at service discovery
+     *
+     * @param charac     characteristic uuid
+     * @param descriptor descriptor uuid
+     * @return descriptor or null if not discovered
+     */
+    BluetoothGattDescriptor getDescriptor(UUID charac, UUID descriptor);
 
     IBluetoothCustomManager getManager();
 
+    /**
+     * GATT operation queue of this connection. Operations are executed one at a time, independently of other connections
+     *
+     * @return
+     */
+    GattQueue getGattQueue();
+
+    /**
+     * write credits used to pace write without response on this connection
+     *
+     * @return
+     */
+    WriteFlowControl getWriteFlowControl();
+
+    /**
+     * a write with response has timed out : its callback may still be received and must not be taken for the callback
+     * of a write without response (which would release a write credit that has not been taken)
+     *
+     * @param charac characteristic uuid
+     */
+    void expectLateWriteCallback(UUID charac);
+
+    /**
+     * reusable buffers for chunk writes, to be used from the GATT operation queue only. The value is copied by the stack when the write is issued
+     *
+     * @return chunk buffers of this connection
+     */
+    ChunkBufferPool getChunkBufferPool();
+
+    /**
+     * ATT MTU negotiated with the device (23 if not negotiated)
+     *
+     * @return
+     */
+    int getMtu();
+
+    /**
+     * max value length for a single write on this connection
+     *
+     * @return
+     */
+    int getMaxPayload();
+
+    /**
+     * request a high connection priority (short connection interval) until releaseHighPriority is called. Requests are reference counted
+     */
+    void requestHighPriority();
+
+    /**
+     * release a high connection priority request. Connection priority goes back to balanced when no request is left
+     */
+    void releaseHighPriority();
+
+    /**
+     * trace ring recording GATT events of this connection
+     *
+     * @return
+     */
+    TraceRing getTraceRing();
+
     IDevice getDevice();
 
     void disconnect();
 
-    void setConnected(boolean state);
+    /**
+     * connect again with the gatt object kept from the previous connection. Only this gatt object can use the GATT
+     * layout cached from the previous connection (Android resolves callbacks against the services discovered by the gatt
+     * object itself) but BluetoothGatt.connect() is a background connection using a slow scan rate : the caller should
+     * fall back to scan if the device is not connected quickly
+     *
+     * @return true if connection has been requested
+     */
+    boolean reconnect();
+
+    /**
+     * release gatt object and discovered services
+     */
+    void close();
 
-    void writeLongCharacteristic(String service, String charac, byte[] data, IPushListener listener);
+    void writeLongCharacteristic(UUID service, UUID charac, byte[] data, IPushListener listener);
 }
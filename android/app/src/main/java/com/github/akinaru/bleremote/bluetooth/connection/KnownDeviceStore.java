@@ -0,0 +1,93 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.connection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persist the last device connected and a signature of its GATT layout so that the next launch can connect directly
+ * without scanning, and skip service discovery if the layout is still the same
+ *
+ * @author Bertrand Martel
+ */
+public class KnownDeviceStore {
+
+    private final static String PREFERENCES_NAME = "known_device";
+
+    private final static String KEY_ADDRESS = "last_address";
+    private final static String KEY_NAME = "last_name";
+    private final static String KEY_LAYOUT = "last_layout";
+
+    private final SharedPreferences preferences;
+
+    public KnownDeviceStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * save last device fully initialized
+     *
+     * @param address         device address
+     * @param name            device name
+     * @param layoutSignature signature of GATT layout (see GattUtils.buildLayoutSignature)
+     */
+    public void save(String address, String name, long layoutSignature) {
+        preferences.edit()
+                .putString(KEY_ADDRESS, address)
+                .putString(KEY_NAME, name)
+                .putLong(KEY_LAYOUT, layoutSignature)
+                .apply();
+    }
+
+    /**
+     * @return address of last device or null if none
+     */
+    public String getLastAddress() {
+        return preferences.getString(KEY_ADDRESS, null);
+    }
+
+    /**
+     * @return name of last device or empty string if none
+     */
+    public String getLastName() {
+        return preferences.getString(KEY_NAME, "");
+    }
+
+    /**
+     * check if a GATT layout is the one stored for a device
+     *
+     * @param address         device address
+     * @param layoutSignature signature of GATT layout
+     * @return true if this is the layout of the last device
+     */
+    public boolean matchesLayout(String address, long layoutSignature) {
+        return address.equals(getLastAddress()) && preferences.contains(KEY_LAYOUT) &&
+                preferences.getLong(KEY_LAYOUT, 0) == layoutSignature;
+    }
+
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+}
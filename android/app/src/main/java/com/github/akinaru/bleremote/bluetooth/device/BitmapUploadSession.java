@@ -0,0 +1,818 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.device;
+
+import android.util.Log;
+
+import com.github.akinaru.bleremote.bluetooth.GattPriority;
+import com.github.akinaru.bleremote.bluetooth.GattTimer;
+import com.github.akinaru.bleremote.bluetooth.connection.ConnectionState;
+import com.github.akinaru.bleremote.bluetooth.connection.IBluetoothDeviceConn;
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
+import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
+import com.github.akinaru.bleremote.bluetooth.listener.IUploadSessionListener;
+import com.github.akinaru.bleremote.inter.IProgressListener;
+import com.github.akinaru.bleremote.model.TransmitState;
+import com.github.akinaru.bleremote.model.UploadState;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * One bitmap upload to a BleDisplayDevice driven by an explicit state machine :
+ * <p/>
+ * START -> LENGTH -> WINDOW -> AWAIT_OK -> (WINDOW -> AWAIT_OK)* -> COMPLETE / CANCELLED / FAILED
+ * <p/>
+ * Each frame starts with its sequence number in the window. TRANSMIT_WINDOW_END is written after each window, the
+ * device answers TRANSMIT_OK or TRANSMIT_NACK with a bitmap of missing frames which are sent again.
+ * <p/>
+ * All state transitions run on the session executor, GATT callbacks and notifications are posted to it. Only the
+ * frame counter is updated from the GATT thread while a window is being written. Every non final state has a deadline
+ * on the shared GATT timer, and a disconnection fails the session, so a lost answer can't hold the upload queue.
+ *
+ * @author Bertrand Martel
+ */
+public class BitmapUploadSession {
+
+    private final static String TAG = BitmapUploadSession.class.getName();
+
+    /**
+     * max bitmap frame length (sequence number included) : length of the bitmap characteristic on the firmware side
+     * (BITMAP_FRAME_MAX_LENGTH), larger frames are clamped by the firmware
+     */
+    private final static int BITMAP_FRAME_MAX_LENGTH = 20;
+
+    /**
+     * length frame flag : frames start with a 1 byte sequence number
+     */
+    private final static int FLAG_SEQUENCE = 0x01;
+
+    /**
+     * max bitmap bytes in a window : the device places frames of a window in its page buffers (1024 bytes)
+     */
+    private final static int WINDOW_MAX_BYTES = 1024;
+
+    /**
+     * max number of TRANSMIT_NACK for a single window before giving up
+     */
+    private final static int MAX_WINDOW_RETRY = 3;
+
+    /**
+     * time given to the device to answer a TRANSMIT_START or TRANSMITTING (ms)
+     */
+    private final static int START_TIMEOUT = 5000;
+
+    /**
+     * time given to a window to be written (ms)
+     */
+    private final static int WINDOW_WRITE_TIMEOUT = 15000;
+
+    /**
+     * time given to the device to acknowledge a window (ms)
+     */
+    private final static int ACK_TIMEOUT = 10000;
+
+    /**
+     * time given to the device to decode and display the bitmap after the last window (ms)
+     */
+    private final static int COMPLETE_TIMEOUT = 20000;
+
+    private final IBluetoothDeviceConn conn;
+
+    private final byte[] bitmapData;
+
+    private final IProgressListener progressListener;
+
+    private final PacingController pacingController;
+
+    private final Executor executor;
+
+    private final GattTimer timer;
+
+    private IUploadSessionListener sessionListener;
+
+    /**
+     * deadline of the current state (session executor only)
+     */
+    private GattTimer.Timeout deadline;
+
+    /**
+     * incremented each time a deadline is armed or disarmed so that a stale expiry is ignored
+     */
+    private int deadlineId = 0;
+
+    /**
+     * last acknowledged offset storage (may be null)
+     */
+    private UploadResumeStore resumeStore;
+
+    /**
+     * CRC32 of bitmap data used to check a resumed upload targets the same bitmap
+     */
+    private long hash = 0;
+
+    private volatile UploadState state = UploadState.IDLE;
+
+    /**
+     * bitmap bytes per frame for this upload (max payload of the connection minus sequence number)
+     */
+    private int chunkSize = 0;
+
+    /**
+     * number of frames for this bitmap (last frame may be shorter than chunkSize)
+     */
+    private int frameCount = 0;
+
+    /**
+     * number of frames written so far (updated from GATT thread)
+     */
+    private volatile int sentCount = 0;
+
+    /**
+     * number of frames in the window being written
+     */
+    private int windowSize = 0;
+
+    /**
+     * index of the first frame of the window being written
+     */
+    private int windowFirstFrame = 0;
+
+    /**
+     * number of TRANSMIT_NACK received for the current window
+     */
+    private int windowRetry = 0;
+
+    /**
+     * last progress value sent to progress listener
+     */
+    private int lastProgress = -1;
+
+    private long dateProcessBegin = 0;
+
+    /**
+     * @param conn             device connection
+     * @param bitmapData       encoded bitmap
+     * @param progressListener progress listener (may be null)
+     * @param pacingController window pacing shared between uploads to the same device
+     * @param executor         single thread executor all transitions are confined to
+     */
+    public BitmapUploadSession(IBluetoothDeviceConn conn, byte[] bitmapData, IProgressListener progressListener, PacingController pacingController, Executor executor) {
+        this.conn = conn;
+        this.bitmapData = bitmapData;
+        this.progressListener = progressListener;
+        this.pacingController = pacingController;
+        this.executor = executor;
+        this.timer = conn.getManager().getTimer();
+    }
+
+    public void setSessionListener(IUploadSessionListener listener) {
+        this.sessionListener = listener;
+    }
+
+    public void setResumeStore(UploadResumeStore resumeStore) {
+        this.resumeStore = resumeStore;
+    }
+
+    /**
+     * start the upload : write TRANSMIT_START with the first window size, resume offset and bitmap hash
+     */
+    public void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                if (state != UploadState.IDLE) {
+                    return;
+                }
+                if (!conn.compareAndSetState(ConnectionState.READY, ConnectionState.UPLOADING)) {
+                    Log.e(TAG, "can't upload bitmap in connection state " + conn.getState());
+                    //interrupted upload is kept for resumption
+                    state = UploadState.FAILED;
+                    notifySessionEnd(UploadState.FAILED);
+                    return;
+                }
+                Log.v(TAG, "send bitmap with length : " + bitmapData.length);
+
+                CRC32 crc = new CRC32();
+                crc.update(bitmapData);
+                hash = crc.getValue();
+
+                chunkSize = Math.min(conn.getMaxPayload(), BITMAP_FRAME_MAX_LENGTH) - 1;
+
+                int resumeOffset = 0;
+
+                UploadResumeStore.ResumeInfo resumeInfo = (resumeStore != null) ? resumeStore.load(conn.getAddress()) : null;
+
+                if (resumeInfo != null && resumeInfo.getHash() == hash && resumeInfo.getLength() == bitmapData.length &&
+                        resumeInfo.getChunkSize() > 0 && resumeInfo.getChunkSize() <= chunkSize && resumeInfo.getOffset() > 0) {
+                    //frame grid must be the same as the interrupted upload
+                    chunkSize = resumeInfo.getChunkSize();
+                    resumeOffset = resumeInfo.getOffset();
+                    Log.v(TAG, "resuming upload at offset " + resumeOffset);
+                }
+
+                frameCount = (bitmapData.length + chunkSize - 1) / chunkSize;
+                sentCount = 0;
+                lastProgress = 0;
+                dateProcessBegin = new Date().getTime();
+
+                Log.v(TAG, "chunk size : " + chunkSize + " frame count : " + frameCount);
+
+                if (progressListener != null) {
+                    progressListener.onProgress(0);
+                }
+
+                windowSize = getWindowFrames();
+
+                UploadState startState = (resumeOffset != 0) ? UploadState.RESUME : UploadState.START;
+
+                setState(startState);
+
+                if (startState == UploadState.START) {
+                    //TRANSMIT_START carries the first window size
+                    pacingController.onWindowStart(windowSize);
+                }
+                writeTransmitStatus(new byte[]{
+                        (byte) TransmitState.TRANSMIT_START.ordinal(),
+                        (byte) windowSize,
+                        (byte) (resumeOffset >> 8), (byte) resumeOffset,
+                        (byte) (hash >> 24), (byte) (hash >> 16), (byte) (hash >> 8), (byte) hash
+                }, startState);
+            }
+        });
+    }
+
+    /**
+     * process a TRANSMIT_STATUS notification
+     *
+     * @param transmitState transmit state sent by the device
+     */
+    public void onTransmitStatus(final TransmitState transmitState, byte[] value) {
+
+        //notification value is reused by the stack
+        final byte[] data = Arrays.copyOfRange(value, 1, value.length);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                if (state.isFinished()) {
+                    return;
+                }
+
+                switch (transmitState) {
+
+                    case TRANSMIT_START:
+
+                        if (state == UploadState.RESUME) {
+                            Log.v(TAG, "device can't resume upload, sending full bitmap");
+                            sentCount = 0;
+                            pacingController.onWindowStart(windowSize);
+                            sendLength();
+                        }
+                        break;
+                    case TRANSMIT_OK:
+
+                        if (state == UploadState.RESUME) {
+                            onResumeAccepted(data);
+                            return;
+                        }
+                        if (state != UploadState.AWAIT_OK && state != UploadState.WINDOW) {
+                            Log.e(TAG, "unexpected TRANSMIT_OK in state " + state);
+                            return;
+                        }
+                        pacingController.onWindowAck();
+                        Log.v(TAG, "pacing : " + pacingController);
+
+                        windowRetry = 0;
+
+                        saveResumeOffset();
+
+                        if (sentCount != frameCount) {
+
+                            windowSize = getWindowFrames();
+
+                            Log.v(TAG, "received TRANSMIT_OK sending next batch of " + windowSize + " frames");
+
+                            setState(UploadState.START);
+                            pacingController.onWindowStart(windowSize);
+                            writeTransmitStatus(new byte[]{(byte) TransmitState.TRANSMITTING.ordinal(), (byte) windowSize}, UploadState.START);
+                        } else {
+                            Log.v(TAG, "sending is over. Waiting for complete");
+                            setState(UploadState.AWAIT_OK);
+                        }
+                        break;
+                    case TRANSMIT_NACK:
+
+                        if (state != UploadState.AWAIT_OK && state != UploadState.WINDOW) {
+                            Log.e(TAG, "unexpected TRANSMIT_NACK in state " + state);
+                            return;
+                        }
+                        pacingController.onError();
+
+                        windowRetry++;
+
+                        if (windowRetry > MAX_WINDOW_RETRY) {
+                            Log.e(TAG, "too many retries for window at frame " + windowFirstFrame);
+                            finish(UploadState.FAILED, true);
+                        } else {
+                            resendFrames(data);
+                        }
+                        break;
+                    case TRANSMIT_ERROR:
+                        Log.e(TAG, "received TRANSMIT_ERROR");
+                        pacingController.onError();
+                        Log.v(TAG, "pacing : " + pacingController);
+                        //device has already dropped the transfer
+                        finish(UploadState.FAILED, false);
+                        break;
+                    case TRANSMIT_COMPLETE:
+                        Log.v(TAG, "received TRANSMIT_COMPLETE in " + (new Date().getTime() - dateProcessBegin) + "ms");
+                        finish(UploadState.COMPLETE, false);
+                        break;
+                }
+            }
+        });
+    }
+
+    /**
+     * cancel the upload : drop queued frames and write TRANSMIT_CANCEL
+     */
+    public void cancel() {
+
+        //stop the window being written right away
+        UploadState previous = state;
+        if (previous.isFinished()) {
+            return;
+        }
+        state = UploadState.CANCELLED;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, "cancel upload");
+                finish(UploadState.CANCELLED, true);
+            }
+        });
+    }
+
+    /**
+     * the link is down : the upload can't go on (a queued session fails without starting). Resume record is kept
+     */
+    public void onDisconnected() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!state.isFinished()) {
+                    Log.v(TAG, "disconnected in state " + state);
+                    finish(UploadState.FAILED, false);
+                }
+            }
+        });
+    }
+
+    public UploadState getState() {
+        return state;
+    }
+
+    public int getSentCount() {
+        return sentCount;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    private void setState(UploadState state) {
+        //a cancellation requested from another thread wins over any transition
+        if (this.state != UploadState.CANCELLED) {
+            this.state = state;
+            armDeadline(state);
+        }
+    }
+
+    /**
+     * time given to the session to leave a state (ms), 0 if not guarded
+     *
+     * @param state session state
+     * @return
+     */
+    private int getDeadline(UploadState state) {
+        switch (state) {
+            case START:
+            case RESUME:
+                return START_TIMEOUT;
+            case LENGTH:
+            case WINDOW:
+                return WINDOW_WRITE_TIMEOUT;
+            case AWAIT_OK:
+                return (sentCount == frameCount) ? COMPLETE_TIMEOUT : ACK_TIMEOUT;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * fail the session if it is still in this state when its deadline expires (lost write callback or notification)
+     *
+     * @param expectedState state being entered
+     */
+    private void armDeadline(final UploadState expectedState) {
+
+        disarmDeadline();
+
+        final int delay = getDeadline(expectedState);
+
+        if (delay == 0) {
+            return;
+        }
+        final int id = deadlineId;
+
+        deadline = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (id == deadlineId && state == expectedState) {
+                            Log.e(TAG, "no answer in state " + expectedState + " after " + delay + "ms");
+                            finish(UploadState.FAILED, true);
+                        }
+                    }
+                });
+            }
+        }, delay);
+    }
+
+    private void disarmDeadline() {
+        deadlineId++;
+        if (deadline != null) {
+            deadline.cancel();
+            deadline = null;
+        }
+    }
+
+    /**
+     * write a TRANSMIT_STATUS value, going on with the window once it is acknowledged
+     *
+     * @param value         characteristic value
+     * @param expectedState state the session must still be in when the write completes
+     */
+    private void writeTransmitStatus(byte[] value, final UploadState expectedState) {
+
+        conn.writeCharacteristic(BleDisplayDevice.SERVICE_BUTTON, BleDisplayDevice.TRANSMIT_STATUS, value, new IPushListener() {
+            @Override
+            public void onPushFailure() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.e(TAG, "error happenend setting transmit status");
+                        if (state == expectedState) {
+                            finish(UploadState.FAILED, true);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onPushSuccess() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (state != expectedState || state == UploadState.RESUME) {
+                            //resume is answered by a notification
+                            return;
+                        }
+                        if (sentCount == 0) {
+                            sendLength();
+                        } else {
+                            sendWindow(windowSize);
+                        }
+                    }
+                });
+            }
+        }, false);
+    }
+
+    /**
+     * device accepted to resume the upload : go on from the offset it has committed
+     *
+     * @param data notification data : committed offset (2 bytes)
+     */
+    private void onResumeAccepted(byte[] data) {
+
+        int offset = (data.length >= 2) ? (((data[0] & 0xFF) << 8) + (data[1] & 0xFF)) : 0;
+
+        if (offset <= 0 || offset > bitmapData.length || (offset % chunkSize != 0 && offset != bitmapData.length)) {
+            Log.e(TAG, "invalid resume offset " + offset);
+            finish(UploadState.FAILED, true);
+            return;
+        }
+        sentCount = (offset + chunkSize - 1) / chunkSize;
+
+        Log.v(TAG, "upload resumed at frame " + sentCount + "/" + frameCount);
+
+        if (progressListener != null) {
+            lastProgress = (sentCount * 100) / frameCount;
+            progressListener.onProgress(lastProgress);
+        }
+        if (sentCount == frameCount) {
+            setState(UploadState.AWAIT_OK);
+            return;
+        }
+        windowSize = getWindowFrames();
+
+        setState(UploadState.START);
+        pacingController.onWindowStart(windowSize);
+        writeTransmitStatus(new byte[]{(byte) TransmitState.TRANSMITTING.ordinal(), (byte) windowSize}, UploadState.START);
+    }
+
+    /**
+     * save acknowledged offset so that the upload can be resumed after a disconnection
+     */
+    private void saveResumeOffset() {
+        if (resumeStore != null) {
+            resumeStore.save(conn.getAddress(), new UploadResumeStore.ResumeInfo(hash, bitmapData.length, chunkSize, Math.min(sentCount * chunkSize, bitmapData.length)));
+        }
+    }
+
+    /**
+     * write bitmap length and chunk size. This frame is part of the first window
+     */
+    private void sendLength() {
+
+        setState(UploadState.LENGTH);
+
+        conn.writeCharacteristic(BleDisplayDevice.SERVICE_BUTTON, BleDisplayDevice.BITMAP, new byte[]{(byte) (bitmapData.length >> 8), (byte) bitmapData.length, (byte) (chunkSize + 1), FLAG_SEQUENCE}, new IPushListener() {
+            @Override
+            public void onPushFailure() {
+                Log.e(TAG, "error happenend setting bitmap length");
+            }
+
+            @Override
+            public void onPushSuccess() {
+                Log.v(TAG, "set bitmap length successfull");
+            }
+        }, true);
+
+        //the window is queued right behind the length frame on the same connection
+        sendWindow(windowSize);
+    }
+
+    /**
+     * number of frames for the next window : pacing window size limited to what the device can hold and to the frames left
+     *
+     * @return
+     */
+    private int getWindowFrames() {
+        return Math.min(Math.min(pacingController.getWindowSize(), WINDOW_MAX_BYTES / chunkSize), frameCount - sentCount);
+    }
+
+    /**
+     * write the next frames as a single batch
+     *
+     * @param frames number of frames in this window
+     */
+    private void sendWindow(int frames) {
+
+        setState(UploadState.WINDOW);
+
+        if (state != UploadState.WINDOW) {
+            return;
+        }
+        conn.getWriteFlowControl().setInterval(pacingController.getInterval());
+
+        windowFirstFrame = sentCount;
+
+        int offset = sentCount * chunkSize;
+        int length = Math.min(frames * chunkSize, bitmapData.length - offset);
+
+        conn.writeCharacteristicBatch(BleDisplayDevice.SERVICE_BUTTON, BleDisplayDevice.BITMAP, bitmapData, offset, length, chunkSize, 0, batchListener);
+
+        writeWindowEnd();
+    }
+
+    /**
+     * send frames reported missing by the device, then end the window again
+     *
+     * @param missingFrames bitmap of missing frames (bit i of byte i/8 for frame i of the window)
+     */
+    private void resendFrames(byte[] missingFrames) {
+
+        int frame = 0;
+
+        while (frame < windowSize) {
+
+            if (!isMissing(missingFrames, frame)) {
+                frame++;
+                continue;
+            }
+
+            //send consecutive missing frames as a single batch
+            int first = frame;
+            while (frame < windowSize && isMissing(missingFrames, frame)) {
+                frame++;
+            }
+
+            int offset = (windowFirstFrame + first) * chunkSize;
+            int length = Math.min((frame - first) * chunkSize, bitmapData.length - offset);
+
+            Log.v(TAG, "resending frames " + first + " to " + (frame - 1) + " of window at frame " + windowFirstFrame);
+
+            conn.writeCharacteristicBatch(BleDisplayDevice.SERVICE_BUTTON, BleDisplayDevice.BITMAP, bitmapData, offset, length, chunkSize, first, resendListener);
+        }
+        writeWindowEnd();
+    }
+
+    private static boolean isMissing(byte[] missingFrames, int frame) {
+        return (frame / 8) < missingFrames.length && (missingFrames[frame / 8] & (1 << (frame % 8))) != 0;
+    }
+
+    /**
+     * tell the device all frames of the window have been sent. Queued behind the window frames on the same connection
+     */
+    private void writeWindowEnd() {
+
+        conn.writeCharacteristic(BleDisplayDevice.SERVICE_BUTTON, BleDisplayDevice.TRANSMIT_STATUS, new byte[]{(byte) TransmitState.TRANSMIT_WINDOW_END.ordinal()}, new IPushListener() {
+            @Override
+            public void onPushFailure() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.e(TAG, "error happenend ending window");
+                        if (!state.isFinished()) {
+                            finish(UploadState.FAILED, true);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onPushSuccess() {
+
+            }
+        }, false);
+    }
+
+    /**
+     * listener for frames sent again : they don't count in progress
+     */
+    private final IBatchListener resendListener = new IBatchListener() {
+
+        @Override
+        public boolean onChunkWritten(int index, int offset, int length) {
+            return !state.isFinished();
+        }
+
+        @Override
+        public void onBatchComplete(int chunkCount) {
+
+        }
+
+        @Override
+        public void onBatchFailure(final int chunkCount) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Log.e(TAG, "error happenend sending missing frames");
+                    if (!state.isFinished()) {
+                        finish(UploadState.FAILED, true);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * shared listener for all windows : nothing is allocated per chunk
+     */
+    private final IBatchListener batchListener = new IBatchListener() {
+
+        @Override
+        public boolean onChunkWritten(int index, int offset, int length) {
+
+            sentCount++;
+
+            int progress = (sentCount * 100) / frameCount;
+
+            if (progressListener != null && progress != lastProgress) {
+                lastProgress = progress;
+                progressListener.onProgress(progress);
+            }
+            return state == UploadState.WINDOW;
+        }
+
+        @Override
+        public void onBatchComplete(int chunkCount) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    if (state != UploadState.WINDOW) {
+                        return;
+                    }
+                    if (sentCount == frameCount) {
+                        Log.v(TAG, "completly finished in " + (new Date().getTime() - dateProcessBegin) + "ms - packet count : " + frameCount);
+                        if (progressListener != null) {
+                            progressListener.onFinishUpload();
+                        }
+                    }
+                    setState(UploadState.AWAIT_OK);
+                }
+            });
+        }
+
+        @Override
+        public void onBatchFailure(final int chunkCount) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Log.e(TAG, "error happenend during transmission after " + chunkCount + " frames");
+                    if (state == UploadState.WINDOW) {
+                        finish(UploadState.FAILED, true);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * move to a final state, reset the device transmit state if needed and notify listeners
+     *
+     * @param finalState  COMPLETE, CANCELLED or FAILED
+     * @param resetDevice write TRANSMIT_CANCEL so the device drops the transfer
+     */
+    private void finish(UploadState finalState, boolean resetDevice) {
+
+        disarmDeadline();
+        pacingController.onUploadEnd();
+
+        if (resetDevice) {
+
+            //queued chunks are useless once the upload is over
+            conn.cancelPendingWrites(BleDisplayDevice.BITMAP);
+
+            conn.writeCharacteristic(BleDisplayDevice.SERVICE_BUTTON, BleDisplayDevice.TRANSMIT_STATUS, new byte[]{(byte) TransmitState.TRANSMIT_CANCEL.ordinal()}, new IPushListener() {
+                @Override
+                public void onPushFailure() {
+                    Log.e(TAG, "error happenend setting transmit status");
+                }
+
+                @Override
+                public void onPushSuccess() {
+
+                }
+            }, false, GattPriority.HIGH);
+        }
+
+        state = finalState;
+
+        conn.compareAndSetState(ConnectionState.UPLOADING, ConnectionState.READY);
+
+        Log.v(TAG, "upload session end : " + finalState);
+
+        //a failed upload is kept for resumption after reconnection
+        if (resumeStore != null && (finalState == UploadState.COMPLETE || finalState == UploadState.CANCELLED)) {
+            resumeStore.clear(conn.getAddress());
+        }
+
+        notifySessionEnd(finalState);
+    }
+
+    private void notifySessionEnd(UploadState finalState) {
+
+        if (progressListener != null) {
+            if (finalState != UploadState.COMPLETE) {
+                progressListener.onFinishUpload();
+            }
+            progressListener.onComplete();
+        }
+        if (sessionListener != null) {
+            sessionListener.onSessionEnd(this);
+        }
+    }
+}
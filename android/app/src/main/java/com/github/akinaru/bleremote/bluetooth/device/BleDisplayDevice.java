@@ -27,11 +27,18 @@ import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.util.Log;
 
+import com.github.akinaru.bleremote.bluetooth.CoalescingWriter;
+import com.github.akinaru.bleremote.bluetooth.GattPriority;
 import com.github.akinaru.bleremote.bluetooth.connection.BluetoothDeviceAbstr;
 import com.github.akinaru.bleremote.bluetooth.connection.IBluetoothDeviceConn;
 import com.github.akinaru.bleremote.bluetooth.listener.ICharacteristicListener;
 import com.github.akinaru.bleremote.bluetooth.listener.IDeviceInitListener;
+import com.github.akinaru.bleremote.bluetooth.listener.INotificationListener;
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
+import com.github.akinaru.bleremote.bluetooth.listener.IReadListener;
+import com.github.akinaru.bleremote.bluetooth.listener.IUploadSessionListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceEvent;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
 import com.github.akinaru.bleremote.inter.IBleDisplayRemoteDevice;
 import com.github.akinaru.bleremote.inter.IDirectionPadListener;
 import com.github.akinaru.bleremote.inter.IProgressListener;
@@ -39,11 +46,12 @@ import com.github.akinaru.bleremote.model.DpadState;
 import com.github.akinaru.bleremote.model.TransmitState;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
+import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 
 /**
  * RFduino Bluetooth device management
@@ -54,35 +62,70 @@ public class BleDisplayDevice extends BluetoothDeviceAbstr implements IBleDispla
 
     private String TAG = BleDisplayDevice.this.getClass().getName();
 
-    private final static String SERVICE_BUTTON = "00001523-1212-efde-1523-785feabcd123";
-    private final static String DPAD = "00001605-1212-efde-1523-785feabcd123";
+    public final static UUID SERVICE_BUTTON = UUID.fromString("00001523-1212-efde-1523-785feabcd123");
+    private final static UUID DPAD = UUID.fromString("00001605-1212-efde-1523-785feabcd123");
 
-    private final static String LED = "00001701-1212-efde-1523-785feabcd123";
-    private final static String FULL_COLOR = "00001801-1212-efde-1523-785feabcd123";
-    private final static String BITMAP = "00001802-1212-efde-1523-785feabcd123";
-    private final static String TRANSMIT_STATUS = "00001803-1212-efde-1523-785feabcd123";
+    private final static UUID LED = UUID.fromString("00001701-1212-efde-1523-785feabcd123");
+    private final static UUID FULL_COLOR = UUID.fromString("00001801-1212-efde-1523-785feabcd123");
+    final static UUID BITMAP = UUID.fromString("00001802-1212-efde-1523-785feabcd123");
+    final static UUID TRANSMIT_STATUS = UUID.fromString("00001803-1212-efde-1523-785feabcd123");
+
+    /**
+     * characteristic read on a warm reconnection to check that cached handles still point to the device attributes
+     * (LED value is always 1 byte long)
+     */
+    public final static UUID LAYOUT_PROBE = LED;
+    public final static int LAYOUT_PROBE_LENGTH = 1;
+
+    /**
+     * number of attempts to enable notifications before the initialization fails
+     */
+    private final static int NOTIFICATION_MAX_ATTEMPT = 2;
+
+    private final static UUID SERVICE_BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private final static UUID BATTERY_LEVEL = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
 
     private ArrayList<IDeviceInitListener> initListenerList = new ArrayList<>();
 
     private ArrayList<IDirectionPadListener> dpadListeners = new ArrayList<>();
 
-    private final static int SENDING_BUFFER_MAX_LENGTH = 18;
+    /**
+     * notification dispatch table by characteristic uuid, registered in init()
+     */
+    private ConcurrentHashMap<UUID, INotificationListener> notificationListenerMap = new ConcurrentHashMap<>();
 
     private boolean init = false;
 
-    private int sendIndex = 0;
-    private int sendingNum = 0;
-    private boolean remain = false;
-    private byte[] bitmapData;
+    /**
+     * upload session being processed
+     */
+    private BitmapUploadSession uploadSession;
+
+    /**
+     * upload sessions waiting for the current one to end
+     */
+    private LinkedList<BitmapUploadSession> uploadQueue = new LinkedList<>();
 
-    private boolean stopProcessingBitmap = true;
-    private long dateProcessBegin = 0;
-    private int failCount = 0;
-    private int frameNumToSend = 0;
+    /**
+     * define if a high connection priority has been requested for the current upload
+     */
+    private boolean priorityBoost = false;
 
-    private IProgressListener progressListener;
-    private boolean stopUpload = false;
-    private boolean mUploading = false;
+    /**
+     * AIMD pacing of bitmap windows
+     */
+    private PacingController pacingController;
+
+    /**
+     * last acknowledged upload offset per device, used to resume after a disconnection
+     */
+    private UploadResumeStore resumeStore;
+
+    /**
+     * latest value wins writers for LED and full color state
+     */
+    private CoalescingWriter ledWriter;
+    private CoalescingWriter fullColorWriter;
 
     /*
          * Creates a new pool of Thread objects for the download work queue
@@ -98,6 +141,15 @@ public class BleDisplayDevice extends BluetoothDeviceAbstr implements IBleDispla
 
         threadPool = Executors.newFixedThreadPool(1);
 
+        pacingController = new PacingController(conn.getManager().getTimer());
+
+        ledWriter = new CoalescingWriter(conn, SERVICE_BUTTON, LED, GattPriority.HIGH);
+        fullColorWriter = new CoalescingWriter(conn, SERVICE_BUTTON, FULL_COLOR, GattPriority.HIGH);
+
+        if (conn.getManager().getContext() != null) {
+            resumeStore = new UploadResumeStore(conn.getManager().getContext());
+        }
+
         setCharacteristicListener(new ICharacteristicListener() {
 
             @Override
@@ -108,64 +160,10 @@ public class BleDisplayDevice extends BluetoothDeviceAbstr implements IBleDispla
             @Override
             public void onCharacteristicChangeReceived(BluetoothGattCharacteristic charac) {
 
-                if (charac.getUuid().toString().equals(TRANSMIT_STATUS)) {
-
-                    if (charac.getValue().length > 0) {
-
-                        TransmitState state = TransmitState.getTransmitState(charac.getValue()[0]);
-
-                        switch (state) {
-
-                            case TRANSMIT_OK:
-                                if (sendIndex != sendingNum) {
-                                    Log.v(TAG, "received TRANSMIT_OK sending next batch of 128 frames");
-
-                                    threadPool.execute(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            BleDisplayDevice.this.conn.writeCharacteristic(SERVICE_BUTTON, TRANSMIT_STATUS, new byte[]{(byte) TransmitState.TRANSMITTING.ordinal()}, new IPushListener() {
-                                                @Override
-                                                public void onPushFailure() {
-                                                    Log.e(TAG, "error happenend setting bitmap length");
-                                                }
-
-                                                @Override
-                                                public void onPushSuccess() {
-                                                    Log.v(TAG, "set bitmap length successfull");
-                                                    frameNumToSend = 128;
-                                                    sendBitmapSequence();
-                                                }
-                                            }, false);
-                                        }
-                                    });
-                                } else {
-                                    Log.v(TAG, "sending is over. Waiting for complete");
-                                }
-                                break;
-                            case TRANSMIT_COMPLETE:
-                                Log.v(TAG, "received TRANSMIT_COMPLETE");
-                                if (progressListener != null) {
-                                    progressListener.onComplete();
-                                }
-                                clearBimapInfo();
-                                mUploading = false;
-                                break;
-                        }
-                    }
-                } else {
-                    DpadState dpad = DpadState.NONE;
-
-                    switch (charac.getUuid().toString()) {
-                        case DPAD:
-                            dpad = DpadState.getDpad(charac.getValue()[0]);
-                            break;
-                    }
-
-                    for (int i = 0; i < dpadListeners.size(); i++) {
-                        if (dpadListeners.get(i) != null) {
-                            dpadListeners.get(i).onDPadStateChanged(dpad);
-                        }
-                    }
+                INotificationListener listener = notificationListenerMap.get(charac.getUuid());
+
+                if (listener != null) {
+                    listener.onNotification(charac.getValue());
                 }
             }
 
@@ -176,22 +174,114 @@ public class BleDisplayDevice extends BluetoothDeviceAbstr implements IBleDispla
         });
     }
 
+    /**
+     * process a TRANSMIT_STATUS notification
+     *
+     * @param value characteristic value
+     */
+    private void onTransmitStatusChanged(byte[] value) {
+
+        if (value.length > 0) {
+
+            TransmitState state = TransmitState.getTransmitState(value[0]);
+
+            BitmapUploadSession session = getUploadSession();
+
+            conn.getTraceRing().record(TraceEvent.TRANSMIT_STATUS, (session != null) ? session.getSentCount() : 0, value.length, state.ordinal());
+
+            if (session != null) {
+                session.onTransmitStatus(state, value);
+            }
+        }
+    }
+
+    /**
+     * process a DPAD notification
+     *
+     * @param value characteristic value
+     */
+    private void onDpadChanged(byte[] value) {
+
+        DpadState dpad = DpadState.NONE;
+
+        if (value.length > 0) {
+            dpad = DpadState.getDpad(value[0]);
+        }
+
+        conn.getTraceRing().record(TraceEvent.DPAD, 0, value.length, dpad.ordinal());
+
+        for (int i = 0; i < dpadListeners.size(); i++) {
+            if (dpadListeners.get(i) != null) {
+                dpadListeners.get(i).onDPadStateChanged(dpad);
+            }
+        }
+    }
+
     @Override
     public void init() {
 
         Log.v(TAG, "initializing Ble Display Service");
 
-        conn.enableDisableNotification(UUID.fromString(SERVICE_BUTTON), UUID.fromString(DPAD), true);
-        conn.enableGattNotifications(SERVICE_BUTTON, DPAD);
+        notificationListenerMap.put(DPAD, new INotificationListener() {
+            @Override
+            public void onNotification(byte[] value) {
+                onDpadChanged(value);
+            }
+        });
+
+        notificationListenerMap.put(TRANSMIT_STATUS, new INotificationListener() {
+            @Override
+            public void onNotification(byte[] value) {
+                onTransmitStatusChanged(value);
+            }
+        });
+
+        enableNotifications(1);
+    }
+
+    /**
+     * all CCCD writes are queued at once, device is ready on the last acknowledgement. Device is not usable without
+     * notifications (dpad and upload status) : CCCD writes are sent again if one failed, then initialization fails
+     *
+     * @param attempt attempt number, starting at 1
+     */
+    private void enableNotifications(final int attempt) {
+
+        conn.enableGattNotifications(SERVICE_BUTTON, new UUID[]{DPAD, TRANSMIT_STATUS}, new IPushListener() {
+            @Override
+            public void onPushFailure() {
+                if (attempt < NOTIFICATION_MAX_ATTEMPT) {
+                    Log.w(TAG, "notifications could not all be enabled, retrying");
+                    enableNotifications(attempt + 1);
+                } else {
+                    Log.e(TAG, "notifications could not be enabled");
+                    onInitFailure();
+                }
+            }
+
+            @Override
+            public void onPushSuccess() {
+                onInitComplete();
+            }
+        });
+    }
+
+    private void onInitComplete() {
 
-        conn.enableDisableNotification(UUID.fromString(SERVICE_BUTTON), UUID.fromString(TRANSMIT_STATUS), true);
-        conn.enableGattNotifications(SERVICE_BUTTON, TRANSMIT_STATUS);
+        init = true;
 
         for (int i = 0; i < initListenerList.size(); i++) {
             initListenerList.get(i).onInit();
         }
     }
 
+    private void onInitFailure() {
+
+        for (int i = 0; i < initListenerList.size(); i++) {
+            initListenerList.get(i).onInitFailure();
+        }
+    }
+
     @Override
     public boolean isInit() {
         return init;
@@ -209,194 +299,158 @@ public class BleDisplayDevice extends BluetoothDeviceAbstr implements IBleDispla
 
     @Override
     public void pushLedState(byte mask, IPushListener listener) {
-        conn.writeCharacteristic(SERVICE_BUTTON, LED, new byte[]{mask}, listener, false);
+        ledWriter.write(new byte[]{mask}, listener);
     }
 
     @Override
     public void pushFullColor(byte red, byte green, byte blue, IPushListener listener) {
-        conn.writeCharacteristic(SERVICE_BUTTON, FULL_COLOR, new byte[]{red, green, blue}, listener, false);
+        fullColorWriter.write(new byte[]{red, green, blue}, listener);
     }
 
-    private void clearBimapInfo() {
-        sendingNum = 0;
-        remain = false;
-        sendIndex = 0;
-        bitmapData = new byte[]{};
-        stopProcessingBitmap = true;
+    @Override
+    public void sendBitmapNoEncoding(final byte[] bitmapData) {
+        sendBitmapEncodedBitmask(bitmapData, null);
     }
 
-    private void sendBitmapSequence() {
-
-        if (!stopProcessingBitmap) {
-
-            if (sendIndex != sendingNum) {
-
-                byte[] data = Arrays.copyOfRange(bitmapData, sendIndex * SENDING_BUFFER_MAX_LENGTH, sendIndex * SENDING_BUFFER_MAX_LENGTH + SENDING_BUFFER_MAX_LENGTH);
-                sendIndex++;
-
-                conn.writeCharacteristic(SERVICE_BUTTON, BITMAP, data, new IPushListener() {
-                    @Override
-                    public void onPushFailure() {
-
-                        Log.e(TAG, "error happenend during transmission. Retrying");
-                    }
-
-                    @Override
-                    public void onPushSuccess() {
-
-                    }
-                }, true);
-
-                if (progressListener != null) {
-                    progressListener.onProgress((sendIndex * 100) / sendingNum);
-                }
-
-                Log.v(TAG, "sending... : " + sendIndex + "/" + sendingNum + " : " +
-                        (data[0] & 0xFF) + ";" +
-                        (data[1] & 0xFF) + ";" +
-                        (data[2] & 0xFF) + ";" +
-                        (data[3] & 0xFF) + ";" +
-                        (data[4] & 0xFF) + ";" +
-                        (data[5] & 0xFF) + ";" +
-                        (data[6] & 0xFF) + ";" +
-                        (data[7] & 0xFF) + ";" +
-                        (data[8] & 0xFF) + ";" +
-                        (data[9] & 0xFF) + ";" +
-                        (data[10] & 0xFF) + ";" +
-                        (data[11] & 0xFF) + ";" +
-                        (data[12] & 0xFF) + ";" +
-                        (data[13] & 0xFF) + ";" +
-                        (data[14] & 0xFF) + ";" +
-                        (data[15] & 0xFF) + ";" +
-                        (data[16] & 0xFF) + ";" +
-                        (data[17] & 0xFF));
-                frameNumToSend--;
-
-                if (frameNumToSend != 0 && !stopUpload) {
-                    sendBitmapSequence();
-                }
-            } else {
-
-                if (remain) {
-
-                    int remainNum = bitmapData.length % SENDING_BUFFER_MAX_LENGTH;
-
-                    byte[] data = Arrays.copyOfRange(bitmapData, sendingNum * SENDING_BUFFER_MAX_LENGTH, sendingNum * SENDING_BUFFER_MAX_LENGTH + remainNum);
-
-                    Log.v(TAG, "sending : " + data.length);
+    @Override
+    public void sendBitmapEncodedBitmask(final byte[] bitmapData, IProgressListener listener) {
 
-                    conn.writeCharacteristic(SERVICE_BUTTON, BITMAP, data, new IPushListener() {
-                        @Override
-                        public void onPushFailure() {
+        BitmapUploadSession session = new BitmapUploadSession(conn, bitmapData, listener, pacingController, threadPool);
+        session.setResumeStore(resumeStore);
 
-                        }
+        session.setSessionListener(new IUploadSessionListener() {
+            @Override
+            public void onSessionEnd(BitmapUploadSession session) {
+                startNextUpload(session);
+            }
+        });
 
-                        @Override
-                        public void onPushSuccess() {
+        synchronized (this) {
+            if (uploadSession != null) {
+                Log.v(TAG, "already uploading, queueing upload");
+                uploadQueue.add(session);
+                return;
+            }
+            uploadSession = session;
+        }
+        requestPriorityBoost();
+        session.start();
+    }
 
-                        }
-                    }, true);
+    /**
+     * start the next queued upload when a session ends
+     *
+     * @param session session that just ended
+     */
+    private void startNextUpload(BitmapUploadSession session) {
 
-                    Log.v(TAG, "frameNumToSend : " + frameNumToSend);
-                    Log.v(TAG, "completly finished in " + (new Date().getTime() - dateProcessBegin) + "ms - fail : " + failCount + " packet count : " + sendingNum);
+        BitmapUploadSession next;
 
-                    if (progressListener != null) {
-                        progressListener.onFinishUpload();
-                    }
-                }
+        synchronized (this) {
+            if (uploadSession != session) {
+                return;
             }
+            next = uploadQueue.poll();
+            uploadSession = next;
+        }
+        if (next != null) {
+            next.start();
         } else {
-            Log.v(TAG, "stop processing bitmap");
+            releasePriorityBoost();
         }
     }
 
-    private void sendBitmap(final byte[] bitmapData) {
-        Log.v(TAG, "send bitmap with length : " + bitmapData.length);
+    @Override
+    public void cancelBitmap() {
+
+        BitmapUploadSession session;
+
+        synchronized (this) {
+            uploadQueue.clear();
+            session = uploadSession;
+        }
+        if (session != null) {
+            session.cancel();
+        }
+    }
 
-        sendingNum = bitmapData.length / SENDING_BUFFER_MAX_LENGTH;
-        remain = false;
-        if ((bitmapData.length % SENDING_BUFFER_MAX_LENGTH) != 0) {
-            remain = true;
+    @Override
+    public void notifyDisconnected() {
+
+        BitmapUploadSession session;
+        ArrayList<BitmapUploadSession> queued;
+
+        synchronized (this) {
+            session = uploadSession;
+            queued = new ArrayList<>(uploadQueue);
+            uploadQueue.clear();
+            uploadSession = null;
+            //connection has dropped its high priority requests with the link
+            priorityBoost = false;
+        }
+        //uploads queued behind the active one would wait forever
+        if (session != null) {
+            session.onDisconnected();
         }
-        sendIndex = 0;
-        BleDisplayDevice.this.bitmapData = bitmapData;
-        stopProcessingBitmap = false;
-        dateProcessBegin = new Date().getTime();
-        failCount = 0;
-
-        if (progressListener != null) {
-            progressListener.onProgress(0);
+        for (int i = 0; i < queued.size(); i++) {
+            queued.get(i).onDisconnected();
         }
+    }
 
-        conn.writeCharacteristic(SERVICE_BUTTON, TRANSMIT_STATUS, new byte[]{(byte) TransmitState.TRANSMIT_START.ordinal()}, new IPushListener() {
-            @Override
-            public void onPushFailure() {
-                Log.e(TAG, "error happenend setting transmit status");
-            }
+    private synchronized BitmapUploadSession getUploadSession() {
+        return uploadSession;
+    }
 
-            @Override
-            public void onPushSuccess() {
+    /**
+     * shorten connection interval while bitmap data is being sent
+     */
+    private synchronized void requestPriorityBoost() {
+        if (!priorityBoost) {
+            priorityBoost = true;
+            conn.requestHighPriority();
+        }
+    }
 
-                conn.writeCharacteristic(SERVICE_BUTTON, BITMAP, new byte[]{(byte) (bitmapData.length >> 8), (byte) bitmapData.length}, new IPushListener() {
-                    @Override
-                    public void onPushFailure() {
-                        Log.e(TAG, "error happenend setting bitmap length");
-                    }
-
-                    @Override
-                    public void onPushSuccess() {
-                        Log.v(TAG, "set bitmap length successfull");
-
-                    }
-                }, true);
-                frameNumToSend = 127;
-                if (!stopUpload) {
-                    sendBitmapSequence();
-                }
-            }
-        }, false);
+    private synchronized void releasePriorityBoost() {
+        if (priorityBoost) {
+            priorityBoost = false;
+            conn.releaseHighPriority();
+        }
     }
 
     @Override
-    public void sendBitmapNoEncoding(final byte[] bitmapData) {
-        sendBitmap(bitmapData);
+    public synchronized boolean isUploading() {
+        return uploadSession != null;
     }
 
     @Override
-    public void sendBitmapEncodedBitmask(final byte[] bitmapData, IProgressListener listener) {
-        if (!mUploading) {
-            this.progressListener = listener;
-            stopUpload = false;
-            mUploading = true;
-            sendBitmap(bitmapData);
-        } else {
-            Log.e(TAG, "already uploading...");
-        }
+    public PacingController getPacingController() {
+        return pacingController;
     }
 
     @Override
-    public void cancelBitmap() {
-        stopUpload = true;
-        mUploading = false;
-        conn.writeCharacteristic(SERVICE_BUTTON, TRANSMIT_STATUS, new byte[]{(byte) TransmitState.TRANSMIT_CANCEL.ordinal()}, new IPushListener() {
-            @Override
-            public void onPushFailure() {
-                Log.e(TAG, "error happenend setting transmit status");
-            }
-
-            @Override
-            public void onPushSuccess() {
+    public TraceRing getTraceRing() {
+        return conn.getTraceRing();
+    }
 
-            }
-        }, false);
-        if (progressListener != null) {
-            progressListener.onFinishUpload();
-            progressListener.onComplete();
-        }
+    @Override
+    public void readBatteryLevel(IReadListener listener) {
+        conn.readCharacteristic(SERVICE_BATTERY, BATTERY_LEVEL, listener);
     }
 
     @Override
-    public boolean isUploading() {
-        return mUploading;
+    public boolean hasResumableUpload(byte[] bitmapData) {
+
+        if (resumeStore == null || bitmapData == null) {
+            return false;
+        }
+        UploadResumeStore.ResumeInfo info = resumeStore.load(conn.getAddress());
+
+        if (info == null || info.getLength() != bitmapData.length) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bitmapData);
+        return crc.getValue() == info.getHash();
     }
 }
\ No newline at end of file
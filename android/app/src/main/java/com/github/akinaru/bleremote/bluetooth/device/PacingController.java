@@ -0,0 +1,251 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.device;
+
+import com.github.akinaru.bleremote.bluetooth.GattTimer;
+
+/**
+ * AIMD pacing of the bitmap chunk stream. The round trip between the TRANSMITTING write and the TRANSMIT_OK notification
+ * is measured for each window : window size grows and inter-chunk delay shrinks additively while windows are
+ * acknowledged in time, both are backed off multiplicatively on TRANSMIT_ERROR or when a window takes too long. A
+ * window that is not acknowledged within WINDOW_TIMEOUT is backed off from a timer deadline, without waiting for its ack
+ *
+ * @author Bertrand Martel
+ */
+public class PacingController {
+
+    /**
+     * min number of frames per window
+     */
+    public final static int MIN_WINDOW = 16;
+
+    /**
+     * max number of frames per window (firmware window buffer)
+     */
+    public final static int MAX_WINDOW = 128;
+
+    /**
+     * additive increase of window size (frames)
+     */
+    private final static int WINDOW_STEP = 8;
+
+    /**
+     * max inter-chunk delay (ms)
+     */
+    private final static int MAX_INTERVAL = 40;
+
+    /**
+     * a window taking more than this factor of the smoothed time per frame is considered too long
+     */
+    private final static int SLOW_FACTOR = 2;
+
+    /**
+     * a window taking more than this time is considered too long whatever its size (ms)
+     */
+    private final static int WINDOW_TIMEOUT = 5000;
+
+    private int windowSize = MAX_WINDOW;
+
+    private int interval = 0;
+
+    /**
+     * number of frames in the window being sent
+     */
+    private int windowFrames = 0;
+
+    /**
+     * date of the TRANSMITTING write for the window being sent (ms)
+     */
+    private long windowStart = 0;
+
+    /**
+     * round trip of the last acknowledged window (ms)
+     */
+    private long lastRtt = 0;
+
+    /**
+     * smoothed time per frame (ms)
+     */
+    private float frameTime = 0;
+
+    private int increaseCount = 0;
+
+    private int decreaseCount = 0;
+
+    private final GattTimer timer;
+
+    /**
+     * WINDOW_TIMEOUT deadline of the window being sent
+     */
+    private GattTimer.Timeout windowDeadline;
+
+    /**
+     * define if the window being sent has already been backed off by its deadline
+     */
+    private boolean windowTimedOut = false;
+
+    /**
+     * @param timer timer driving window deadlines
+     */
+    public PacingController(GattTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * called when the TRANSMITTING (or TRANSMIT_START) write of a window is issued
+     *
+     * @param frames number of frames in this window
+     */
+    public synchronized void onWindowStart(int frames) {
+
+        cancelDeadline();
+
+        windowFrames = frames;
+        windowStart = System.currentTimeMillis();
+        windowTimedOut = false;
+
+        final long start = windowStart;
+
+        windowDeadline = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onWindowTimeout(start);
+            }
+        }, WINDOW_TIMEOUT);
+    }
+
+    /**
+     * window started at this date is still not acknowledged after WINDOW_TIMEOUT
+     *
+     * @param start date of the window start
+     */
+    private synchronized void onWindowTimeout(long start) {
+        if (windowStart == start && !windowTimedOut) {
+            windowTimedOut = true;
+            decrease();
+        }
+    }
+
+    /**
+     * called when TRANSMIT_OK is received for the window being sent
+     */
+    public synchronized void onWindowAck() {
+
+        if (windowStart == 0 || windowFrames == 0) {
+            return;
+        }
+        cancelDeadline();
+
+        lastRtt = System.currentTimeMillis() - windowStart;
+        windowStart = 0;
+
+        float time = (float) lastRtt / windowFrames;
+
+        if (!windowTimedOut) {
+            if (frameTime > 0 && time > frameTime * SLOW_FACTOR) {
+                decrease();
+            } else {
+                increase();
+            }
+        }
+        //exponential moving average (1/8) like TCP smoothed RTT
+        frameTime = (frameTime == 0) ? time : (frameTime * 7 + time) / 8;
+    }
+
+    /**
+     * called when TRANSMIT_ERROR is received
+     */
+    public synchronized void onError() {
+        cancelDeadline();
+        windowStart = 0;
+        decrease();
+    }
+
+    /**
+     * called when an upload ends : the window being sent won't be acknowledged
+     */
+    public synchronized void onUploadEnd() {
+        cancelDeadline();
+        windowStart = 0;
+    }
+
+    private void cancelDeadline() {
+        if (windowDeadline != null) {
+            windowDeadline.cancel();
+            windowDeadline = null;
+        }
+    }
+
+    private void increase() {
+        windowSize = Math.min(MAX_WINDOW, windowSize + WINDOW_STEP);
+        interval = Math.max(0, interval - 1);
+        increaseCount++;
+    }
+
+    private void decrease() {
+        windowSize = Math.max(MIN_WINDOW, windowSize / 2);
+        interval = Math.min(MAX_INTERVAL, Math.max(1, interval * 2));
+        decreaseCount++;
+    }
+
+    /**
+     * number of frames to send in next window
+     *
+     * @return
+     */
+    public synchronized int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * delay to apply between two chunks (ms)
+     *
+     * @return
+     */
+    public synchronized int getInterval() {
+        return interval;
+    }
+
+    public synchronized long getLastRtt() {
+        return lastRtt;
+    }
+
+    public synchronized float getFrameTime() {
+        return frameTime;
+    }
+
+    public synchronized int getIncreaseCount() {
+        return increaseCount;
+    }
+
+    public synchronized int getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "window=" + windowSize + " interval=" + interval + "ms rtt=" + lastRtt + "ms frameTime=" + frameTime +
+                "ms increase=" + increaseCount + " decrease=" + decreaseCount;
+    }
+}
@@ -0,0 +1,139 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.device;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persist the last acknowledged window of an upload per device address so an upload interrupted by a disconnection
+ * can be resumed from there after reconnection
+ *
+ * @author Bertrand Martel
+ */
+public class UploadResumeStore {
+
+    private final static String PREFERENCES_NAME = "bitmap_upload_resume";
+
+    private final static String KEY_HASH = "_hash";
+
+    private final static String KEY_LENGTH = "_length";
+
+    private final static String KEY_CHUNK_SIZE = "_chunk_size";
+
+    private final static String KEY_OFFSET = "_offset";
+
+    private final SharedPreferences preferences;
+
+    /**
+     * upload state saved for a device
+     */
+    public static class ResumeInfo {
+
+        private final long hash;
+        private final int length;
+        private final int chunkSize;
+        private final int offset;
+
+        public ResumeInfo(long hash, int length, int chunkSize, int offset) {
+            this.hash = hash;
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.offset = offset;
+        }
+
+        /**
+         * @return CRC32 of the bitmap payload
+         */
+        public long getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return bitmap bytes per frame used for this upload
+         */
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * @return number of bytes acknowledged by the device (last TRANSMIT_OK)
+         */
+        public int getOffset() {
+            return offset;
+        }
+    }
+
+    public UploadResumeStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * save the last acknowledged offset of an upload
+     *
+     * @param address device address
+     * @param info    upload state
+     */
+    public void save(String address, ResumeInfo info) {
+        preferences.edit()
+                .putLong(address + KEY_HASH, info.getHash())
+                .putInt(address + KEY_LENGTH, info.getLength())
+                .putInt(address + KEY_CHUNK_SIZE, info.getChunkSize())
+                .putInt(address + KEY_OFFSET, info.getOffset())
+                .apply();
+    }
+
+    /**
+     * @param address device address
+     * @return saved upload state or null if there is no upload to resume for this device
+     */
+    public ResumeInfo load(String address) {
+
+        if (!preferences.contains(address + KEY_HASH)) {
+            return null;
+        }
+        return new ResumeInfo(preferences.getLong(address + KEY_HASH, 0),
+                preferences.getInt(address + KEY_LENGTH, 0),
+                preferences.getInt(address + KEY_CHUNK_SIZE, 0),
+                preferences.getInt(address + KEY_OFFSET, 0));
+    }
+
+    /**
+     * forget the upload saved for a device
+     *
+     * @param address device address
+     */
+    public void clear(String address) {
+        preferences.edit()
+                .remove(address + KEY_HASH)
+                .remove(address + KEY_LENGTH)
+                .remove(address + KEY_CHUNK_SIZE)
+                .remove(address + KEY_OFFSET)
+                .apply();
+    }
+}
@@ -0,0 +1,151 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.events;
+
+import com.github.akinaru.bleremote.bluetooth.listener.IBluetoothEventListener;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process bus dispatching scan, connection and device state events to registered listeners. Each listener is
+ * called on the executor it has registered with (or on the thread posting the event if none)
+ *
+ * @author Bertrand Martel
+ */
+public class BluetoothEventBus {
+
+    private final CopyOnWriteArrayList<Registration> registrationList = new CopyOnWriteArrayList<>();
+
+    /**
+     * a listener with the executor its events are dispatched on
+     */
+    private static class Registration {
+
+        private final IBluetoothEventListener listener;
+
+        private final Executor executor;
+
+        private Registration(IBluetoothEventListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * event to dispatch to a listener
+     */
+    private interface IEvent {
+        void dispatch(IBluetoothEventListener listener);
+    }
+
+    /**
+     * register a listener
+     *
+     * @param listener event listener
+     * @param executor executor used to call the listener (null to call it on the thread posting the event)
+     */
+    public void register(IBluetoothEventListener listener, Executor executor) {
+        registrationList.add(new Registration(listener, executor));
+    }
+
+    public void unregister(IBluetoothEventListener listener) {
+        for (Registration registration : registrationList) {
+            if (registration.listener == listener) {
+                registrationList.remove(registration);
+            }
+        }
+    }
+
+    public void postScanStart() {
+        post(new IEvent() {
+            @Override
+            public void dispatch(IBluetoothEventListener listener) {
+                listener.onScanStart();
+            }
+        });
+    }
+
+    public void postScanEnd() {
+        post(new IEvent() {
+            @Override
+            public void dispatch(IBluetoothEventListener listener) {
+                listener.onScanEnd();
+            }
+        });
+    }
+
+    public void postDeviceDiscovered(final BluetoothObject device) {
+        post(new IEvent() {
+            @Override
+            public void dispatch(IBluetoothEventListener listener) {
+                listener.onDeviceDiscovered(device);
+            }
+        });
+    }
+
+    public void postDeviceSelected(final BluetoothObject device) {
+        post(new IEvent() {
+            @Override
+            public void dispatch(IBluetoothEventListener listener) {
+                listener.onDeviceSelected(device);
+            }
+        });
+    }
+
+    public void postDeviceConnected(final BluetoothObject device) {
+        post(new IEvent() {
+            @Override
+            public void dispatch(IBluetoothEventListener listener) {
+                listener.onDeviceConnected(device);
+            }
+        });
+    }
+
+    public void postDeviceDisconnected(final BluetoothObject device) {
+        post(new IEvent() {
+            @Override
+            public void dispatch(IBluetoothEventListener listener) {
+                listener.onDeviceDisconnected(device);
+            }
+        });
+    }
+
+    private void post(final IEvent event) {
+
+        for (final Registration registration : registrationList) {
+
+            if (registration.executor == null) {
+                event.dispatch(registration.listener);
+            } else {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        event.dispatch(registration.listener);
+                    }
+                });
+            }
+        }
+    }
+}
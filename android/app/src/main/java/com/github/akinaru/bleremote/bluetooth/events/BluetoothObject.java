@@ -23,17 +23,8 @@
  */
 package com.github.akinaru.bleremote.bluetooth.events;
 
-import android.content.Intent;
-
-import com.github.akinaru.bleremote.constant.JsonConstants;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.ArrayList;
-
 /**
- * Object used to wrap broadcast intent json output
+ * Device description carried by bluetooth events
  *
  * @author Bertrand Martel
  */
@@ -43,37 +34,12 @@ public class BluetoothObject {
 
     private String deviceName = "";
 
-    public BluetoothObject(String deviceAddress, String deviceName, int advertizingInterval) {
+    private int rssi;
+
+    public BluetoothObject(String deviceAddress, String deviceName, int rssi) {
         this.deviceAddress = deviceAddress;
         this.deviceName = deviceName;
-    }
-
-    public static BluetoothObject parseArrayList(Intent intent) {
-
-        ArrayList<String> actionsStr = intent.getStringArrayListExtra("");
-
-        if (actionsStr.size() > 0) {
-
-            try {
-
-                JSONObject mainObject = new JSONObject(actionsStr.get(0));
-
-                if (mainObject.has(JsonConstants.BT_ADDRESS) &&
-                        mainObject.has(JsonConstants.BT_DEVICE_NAME)) {
-
-                    int scanInterval = -1;
-                    if (mainObject.has(JsonConstants.BT_ADVERTISING_INTERVAL))
-                        scanInterval = mainObject.getInt(JsonConstants.BT_ADVERTISING_INTERVAL);
-
-                    return new BluetoothObject(mainObject.get(JsonConstants.BT_ADDRESS).toString(),
-                            mainObject.get(JsonConstants.BT_DEVICE_NAME).toString(),
-                            scanInterval);
-                }
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-        return null;
+        this.rssi = rssi;
     }
 
     public String getDeviceAddress() {
@@ -83,4 +49,13 @@ public class BluetoothObject {
     public String getDeviceName() {
         return deviceName;
     }
+
+    /**
+     * RSSI in dBm when known (-1 otherwise)
+     *
+     * @return
+     */
+    public int getRssi() {
+        return rssi;
+    }
 }
@@ -0,0 +1,56 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.listener;
+
+/**
+ * Listener for a batch of chunk writes
+ *
+ * @author Bertrand Martel
+ */
+public interface IBatchListener {
+
+    /**
+     * called after each chunk has been written
+     *
+     * @param index  chunk index in the batch
+     * @param offset offset of the chunk in the payload
+     * @param length chunk length
+     * @return false to stop the batch after this chunk
+     */
+    boolean onChunkWritten(int index, int offset, int length);
+
+    /**
+     * called when all chunks have been written or when the batch has been stopped by onChunkWritten
+     *
+     * @param chunkCount number of chunks written
+     */
+    void onBatchComplete(int chunkCount);
+
+    /**
+     * called when a chunk write failed, remaining chunks are not written
+     *
+     * @param chunkCount number of chunks written before the failure
+     */
+    void onBatchFailure(int chunkCount);
+}
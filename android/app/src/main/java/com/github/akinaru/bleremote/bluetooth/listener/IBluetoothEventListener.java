@@ -0,0 +1,61 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.listener;
+
+import com.github.akinaru.bleremote.bluetooth.events.BluetoothObject;
+
+/**
+ * Scan, connection and device state events dispatched by the bluetooth event bus
+ *
+ * @author Bertrand Martel
+ */
+public interface IBluetoothEventListener {
+
+    void onScanStart();
+
+    void onScanEnd();
+
+    /**
+     * a new device has been found during scan
+     *
+     * @param device device found
+     */
+    void onDeviceDiscovered(BluetoothObject device);
+
+    /**
+     * best ranked device of the scan has been selected for connection
+     *
+     * @param device device selected with its smoothed RSSI
+     */
+    void onDeviceSelected(BluetoothObject device);
+
+    /**
+     * device is connected and fully initialized
+     *
+     * @param device device connected
+     */
+    void onDeviceConnected(BluetoothObject device);
+
+    void onDeviceDisconnected(BluetoothObject device);
+}
@@ -35,4 +35,9 @@ public interface IDeviceInitListener {
      */
     void onInit();
 
+    /**
+     * called when device could not be initialized (it must not be used)
+     */
+    void onInitFailure();
+
 }
@@ -21,17 +21,19 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
  * THE SOFTWARE.                                                                *
  */
-package com.github.akinaru.bleremote.constant;
+package com.github.akinaru.bleremote.bluetooth.listener;
 
 /**
- * constants used for broadcast messages
+ * Handler for notifications of one characteristic
  *
  * @author Bertrand Martel
  */
-public class JsonConstants {
-
-    public final static String BT_ADDRESS = "address";
-    public final static String BT_DEVICE_NAME = "deviceName";
-    public final static String BT_ADVERTISING_INTERVAL = "advertisingInterval";
+public interface INotificationListener {
 
+    /**
+     * called when a notification is received for the characteristic this listener is registered on
+     *
+     * @param value characteristic value
+     */
+    void onNotification(byte[] value);
 }
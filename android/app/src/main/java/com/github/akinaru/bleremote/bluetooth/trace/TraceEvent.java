@@ -0,0 +1,77 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.trace;
+
+/**
+ * Event types recorded in the trace ring
+ *
+ * @author Bertrand Martel
+ */
+public enum TraceEvent {
+
+    /**
+     * characteristic write issued (status : 1 if issued, 0 otherwise)
+     */
+    GATT_WRITE,
+
+    /**
+     * chunk of a batch write issued (sequence : chunk index)
+     */
+    GATT_WRITE_CHUNK,
+
+    /**
+     * onCharacteristicWrite callback (status : GATT status)
+     */
+    GATT_WRITE_CALLBACK,
+
+    /**
+     * onCharacteristicRead callback (status : GATT status)
+     */
+    GATT_READ_CALLBACK,
+
+    /**
+     * onDescriptorWrite callback (status : GATT status)
+     */
+    GATT_DESCRIPTOR_CALLBACK,
+
+    /**
+     * onCharacteristicChanged callback
+     */
+    GATT_NOTIFICATION,
+
+    /**
+     * TRANSMIT_STATUS transition (status : transmit state, sequence : frames sent)
+     */
+    TRANSMIT_STATUS,
+
+    /**
+     * DPAD event (status : dpad value)
+     */
+    DPAD,
+
+    /**
+     * GATT callback not received before the operation deadline
+     */
+    GATT_TIMEOUT
+}
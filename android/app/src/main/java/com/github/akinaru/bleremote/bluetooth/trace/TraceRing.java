@@ -0,0 +1,185 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth.trace;
+
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Fixed size binary trace ring. All storage is allocated once so recording an event doesn't allocate nor format anything,
+ * the content is formatted only when dumped
+ *
+ * @author Bertrand Martel
+ */
+public class TraceRing {
+
+    /**
+     * default number of events kept
+     */
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * size of an event in binary dump : timestamp (8) + type (1) + sequence (4) + length (2) + status (4)
+     */
+    public final static int BINARY_EVENT_SIZE = 19;
+
+    private final long[] timestamps;
+
+    private final byte[] types;
+
+    private final int[] sequences;
+
+    private final short[] lengths;
+
+    private final int[] statuses;
+
+    /**
+     * total number of events recorded (next write position is count % capacity)
+     */
+    private long count = 0;
+
+    private volatile boolean enabled = true;
+
+    private final static TraceEvent[] EVENTS = TraceEvent.values();
+
+    public TraceRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TraceRing(int capacity) {
+        timestamps = new long[capacity];
+        types = new byte[capacity];
+        sequences = new int[capacity];
+        lengths = new short[capacity];
+        statuses = new int[capacity];
+    }
+
+    /**
+     * record an event
+     *
+     * @param event    event type
+     * @param sequence sequence number (chunk index, frame count...)
+     * @param length   data length
+     * @param status   event status
+     */
+    public void record(TraceEvent event, int sequence, int length, int status) {
+
+        if (!enabled) {
+            return;
+        }
+        long timestamp = System.nanoTime();
+
+        synchronized (this) {
+            int index = (int) (count % timestamps.length);
+            timestamps[index] = timestamp;
+            types[index] = (byte) event.ordinal();
+            sequences[index] = sequence;
+            lengths[index] = (short) length;
+            statuses[index] = status;
+            count++;
+        }
+    }
+
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return number of events currently kept in the ring
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, timestamps.length);
+    }
+
+    /**
+     * @return total number of events recorded including the ones overwritten
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * dump events from oldest to newest as csv : timestamp_ns,event,sequence,length,status
+     *
+     * @param file output file
+     * @throws IOException
+     */
+    public synchronized void dumpCsv(File file) throws IOException {
+
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+
+        try {
+            writer.write("timestamp_ns,event,sequence,length,status\n");
+
+            int size = size();
+            int first = (int) ((count - size) % timestamps.length);
+
+            for (int i = 0; i < size; i++) {
+                int index = (first + i) % timestamps.length;
+                writer.write(timestamps[index] + "," + EVENTS[types[index]] + "," + sequences[index] + "," + (lengths[index] & 0xFFFF) + "," + statuses[index] + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * dump events from oldest to newest in binary form (big endian, BINARY_EVENT_SIZE bytes per event, event type is the TraceEvent ordinal)
+     *
+     * @param file output file
+     * @throws IOException
+     */
+    public synchronized void dumpBinary(File file) throws IOException {
+
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+
+        try {
+            int size = size();
+            int first = (int) ((count - size) % timestamps.length);
+
+            for (int i = 0; i < size; i++) {
+                int index = (first + i) % timestamps.length;
+                output.writeLong(timestamps[index]);
+                output.writeByte(types[index]);
+                output.writeInt(sequences[index]);
+                output.writeShort(lengths[index]);
+                output.writeInt(statuses[index]);
+            }
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -24,7 +24,10 @@
 
 package com.github.akinaru.bleremote.inter;
 
+import com.github.akinaru.bleremote.bluetooth.device.PacingController;
 import com.github.akinaru.bleremote.bluetooth.listener.IPushListener;
+import com.github.akinaru.bleremote.bluetooth.listener.IReadListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
 
 /**
  * @author Bertrand Martel
@@ -44,4 +47,33 @@ public interface IBleDisplayRemoteDevice {
     void cancelBitmap();
 
     boolean isUploading();
+
+    /**
+     * pacing state of bitmap upload
+     *
+     * @return
+     */
+    PacingController getPacingController();
+
+    /**
+     * trace of GATT events / transmit status / dpad events for this device
+     *
+     * @return
+     */
+    TraceRing getTraceRing();
+
+    /**
+     * check if an interrupted upload of this bitmap can be resumed on this device
+     *
+     * @param bitmapData encoded bitmap data
+     * @return true if sending this bitmap will resume from the last acknowledged window
+     */
+    boolean hasResumableUpload(byte[] bitmapData);
+
+    /**
+     * read battery level (percent) from battery service. The bitmap upload queue is not held while waiting for the value
+     *
+     * @param listener battery level in the first byte of the value, or failure
+     */
+    void readBatteryLevel(IReadListener listener);
 }
@@ -30,4 +30,9 @@ package com.github.akinaru.bleremote.inter;
 public interface IRemoteActivity {
 
     void disconnect();
+
+    /**
+     * write GATT events trace of the current device to a file
+     */
+    void dumpTrace();
 }
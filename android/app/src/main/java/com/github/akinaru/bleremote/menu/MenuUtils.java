@@ -58,6 +58,12 @@ public class MenuUtils {
                 }
                 break;
             }
+            case R.id.dump_trace: {
+                if (remoteActivity != null) {
+                    remoteActivity.dumpTrace();
+                }
+                break;
+            }
             case R.id.report_bugs: {
                 Intent intent = new Intent(Intent.ACTION_SENDTO, Uri.fromParts(
                         "mailto", context.getResources().getString(R.string.email_addr), null));
@@ -34,7 +34,9 @@ public enum TransmitState {
     TRANSMIT_COMPLETE(3),
     TRANSMIT_ERROR(4),
     TRANSMIT_CANCEL(5),
-    TRANSMIT_START(6);
+    TRANSMIT_START(6),
+    TRANSMIT_WINDOW_END(7),
+    TRANSMIT_NACK(8);
 
     private int state;
 
@@ -59,6 +61,10 @@ public enum TransmitState {
                 return TransmitState.TRANSMIT_CANCEL;
             case 6:
                 return TransmitState.TRANSMIT_START;
+            case 7:
+                return TransmitState.TRANSMIT_WINDOW_END;
+            case 8:
+                return TransmitState.TRANSMIT_NACK;
         }
         return TransmitState.TRANSMIT_NONE;
     }
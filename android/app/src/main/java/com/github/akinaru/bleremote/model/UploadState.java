@@ -0,0 +1,81 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.model;
+
+/**
+ * State of a bitmap upload session
+ *
+ * @author Bertrand Martel
+ */
+public enum UploadState {
+
+    /**
+     * session created, not started yet
+     */
+    IDLE,
+
+    /**
+     * TRANSMIT_START being written
+     */
+    START,
+
+    /**
+     * TRANSMIT_START with a resume offset written, waiting for the device to accept it (TRANSMIT_OK) or to ask for a full upload (TRANSMIT_START)
+     */
+    RESUME,
+
+    /**
+     * bitmap length frame being written
+     */
+    LENGTH,
+
+    /**
+     * a window of frames is being written
+     */
+    WINDOW,
+
+    /**
+     * window sent, waiting for TRANSMIT_OK (or TRANSMIT_COMPLETE after the last window)
+     */
+    AWAIT_OK,
+
+    /**
+     * upload acknowledged by the device
+     */
+    COMPLETE,
+
+    /**
+     * upload cancelled by user
+     */
+    CANCELLED,
+
+    /**
+     * upload failed (write failure or TRANSMIT_ERROR)
+     */
+    FAILED;
+
+    public boolean isFinished() {
+        return this == COMPLETE || this == CANCELLED || this == FAILED;
+    }
+}
@@ -31,10 +31,15 @@ import android.os.Binder;
 import android.os.IBinder;
 
 import com.github.akinaru.bleremote.bluetooth.BluetoothCustomManager;
+import com.github.akinaru.bleremote.bluetooth.connection.ConnectionState;
 import com.github.akinaru.bleremote.bluetooth.connection.IBluetoothDeviceConn;
+import com.github.akinaru.bleremote.bluetooth.listener.IBluetoothEventListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -88,6 +93,8 @@ public class BleDisplayRemoteService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        btManager.release();
+        executor.shutdown();
     }
 
     @Override
@@ -129,6 +136,52 @@ public class BleDisplayRemoteService extends Service {
         btManager.connect(deviceAddress);
     }
 
+    /**
+     * connect directly to the last device connected, without scanning
+     *
+     * @return true if a connection has been requested
+     */
+    public boolean connectLastDevice() {
+        return btManager.connectLastDevice();
+    }
+
+    /**
+     * name of the last device connected
+     *
+     * @return
+     */
+    public String getLastDeviceName() {
+        return btManager.getKnownDeviceStore().getLastName();
+    }
+
+    /**
+     * address of the last device connected or null
+     *
+     * @return
+     */
+    public String getLastDeviceAddress() {
+        return btManager.getKnownDeviceStore().getLastAddress();
+    }
+
+    /**
+     * register a listener for scan and connection events
+     *
+     * @param listener bluetooth event listener
+     * @param executor executor on which listener is called
+     */
+    public void registerEventListener(IBluetoothEventListener listener, Executor executor) {
+        btManager.getEventBus().register(listener, executor);
+    }
+
+    /**
+     * unregister a bluetooth event listener
+     *
+     * @param listener bluetooth event listener
+     */
+    public void unregisterEventListener(IBluetoothEventListener listener) {
+        btManager.getEventBus().unregister(listener);
+    }
+
     /**
      * start Bluetooth scan
      *
@@ -138,6 +191,15 @@ public class BleDisplayRemoteService extends Service {
         return btManager.scanLeDevice();
     }
 
+    /**
+     * set delay of batched scan results delivery
+     *
+     * @param delay report delay in milliseconds (0 to report each result immediately)
+     */
+    public void setScanReportDelay(long delay) {
+        btManager.setScanReportDelay(delay);
+    }
+
     /**
      * clear bluetooth scanning list
      */
@@ -155,6 +217,56 @@ public class BleDisplayRemoteService extends Service {
         return btManager.disconnect(deviceAddress);
     }
 
+    /**
+     * abort a pending connection, see BluetoothCustomManager#cancelConnection
+     *
+     * @param deviceAddress bluetooth device address
+     * @return true if the connection is closed
+     */
+    public boolean cancelConnection(String deviceAddress) {
+        return btManager.cancelConnection(deviceAddress);
+    }
+
+    /**
+     * get state of a connection
+     *
+     * @param deviceAddress bluetooth device address
+     * @return connection state or null if there is no connection to this device
+     */
+    public ConnectionState getConnectionState(String deviceAddress) {
+        IBluetoothDeviceConn conn = (deviceAddress != null) ? btManager.getConnectionList().get(deviceAddress) : null;
+        return (conn != null) ? conn.getState() : null;
+    }
+
+    /**
+     * write GATT events trace of a connection in app files directory as csv (for reading) and binary (for tooling) files
+     *
+     * @param deviceAddress bluetooth device address
+     * @return csv file written or null if device is unknown
+     * @throws IOException
+     */
+    public File dumpTrace(String deviceAddress) throws IOException {
+
+        IBluetoothDeviceConn conn = (deviceAddress != null) ? btManager.getConnectionList().get(deviceAddress) : null;
+
+        if (conn == null) {
+            return null;
+        }
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        String name = "trace-" + deviceAddress.replace(":", "") + "-" + System.currentTimeMillis();
+
+        TraceRing traceRing = conn.getTraceRing();
+
+        File csvFile = new File(directory, name + ".csv");
+        traceRing.dumpCsv(csvFile);
+        traceRing.dumpBinary(new File(directory, name + ".bin"));
+
+        return csvFile;
+    }
+
     /**
      * disconnect all bluetooth devices
      */
@@ -167,7 +279,7 @@ public class BleDisplayRemoteService extends Service {
      *
      * @return
      */
-    public HashMap<String, IBluetoothDeviceConn> getConnectionList() {
+    public Map<String, IBluetoothDeviceConn> getConnectionList() {
         return btManager.getConnectionList();
     }
 
@@ -0,0 +1,172 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Window writes : chunks are written within a single queued operation, yielding only to higher priority tasks
+ *
+ * @author Bertrand Martel
+ */
+public class BatchWriteTaskTest {
+
+    private final static UUID BITMAP = UUID.randomUUID();
+
+    private GattTimer timer;
+
+    private WriteFlowControl flowControl;
+
+    private GattQueue queue;
+
+    private int executeCount = 0;
+
+    /**
+     * writes in the order they reach the stack
+     */
+    private final List<String> writes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        timer = new GattTimer();
+        flowControl = new WriteFlowControl(timer);
+        flowControl.setMaxCredits(64);
+        queue = new GattQueue(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executeCount++;
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void windowIsWrittenInOneRun() {
+
+        queue.submit(new RecordingBatch(new byte[50], 10, new RecordingListener(-1)));
+
+        assertEquals(5, writes.size());
+        assertEquals(1, executeCount);
+        timer.stop();
+    }
+
+    @Test
+    public void yieldsToHigherPriorityOnly() {
+
+        queue.submit(new RecordingBatch(new byte[40], 10, new RecordingListener(1)));
+
+        assertEquals(Arrays.asList("chunk0", "chunk1", "high", "chunk2", "chunk3", "end"), writes);
+        timer.stop();
+    }
+
+    @Test
+    public void resumesFromCurrentChunkWhenOutOfCredits() {
+
+        flowControl.setMaxCredits(2);
+
+        queue.submit(new RecordingBatch(new byte[40], 10, new RecordingListener(-1)));
+        assertEquals(Arrays.asList("chunk0", "chunk1"), writes);
+
+        flowControl.release();
+        flowControl.release();
+        assertEquals(Arrays.asList("chunk0", "chunk1", "chunk2", "chunk3"), writes);
+        timer.stop();
+    }
+
+    private class RecordingBatch extends BatchWriteTask {
+
+        RecordingBatch(byte[] data, int chunkSize, IBatchListener listener) {
+            super(null, BITMAP, data, 0, data.length, chunkSize, 0, flowControl, new ChunkBufferPool(32), new TraceRing(16), listener);
+        }
+
+        @Override
+        protected boolean prepare() {
+            return true;
+        }
+
+        @Override
+        protected boolean issueWrite(byte[] chunk) {
+            writes.add("chunk" + chunk[0]);
+            return true;
+        }
+    }
+
+    /**
+     * queue an interactive command and a window end while the window is written
+     */
+    private class RecordingListener implements IBatchListener {
+
+        private final int interruptAt;
+
+        RecordingListener(int interruptAt) {
+            this.interruptAt = interruptAt;
+        }
+
+        @Override
+        public boolean onChunkWritten(int index, int offset, int length) {
+            if (index == 0 && interruptAt >= 0) {
+                queue.submit(new RecordTask("end", GattPriority.NORMAL));
+            }
+            if (index == interruptAt) {
+                queue.submit(new RecordTask("high", GattPriority.HIGH));
+            }
+            return true;
+        }
+
+        @Override
+        public void onBatchComplete(int chunkCount) {
+        }
+
+        @Override
+        public void onBatchFailure(int chunkCount) {
+        }
+    }
+
+    private class RecordTask extends GattTask {
+
+        private final String name;
+
+        RecordTask(String name, GattPriority priority) {
+            super(null, BITMAP, new byte[0], null, priority);
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            writes.add(name);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import com.github.akinaru.bleremote.bluetooth.listener.IBatchListener;
+import com.github.akinaru.bleremote.bluetooth.trace.TraceRing;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Chunk buffer reuse tests : a window upload must not allocate once frame lengths have been seen
+ *
+ * @author Bertrand Martel
+ */
+public class ChunkBufferPoolTest {
+
+    private final static int CHUNK_SIZE = 19;
+
+    private final static int SMALL_BATCH = 100;
+
+    private final static int LARGE_BATCH = 2000;
+
+    @Test
+    public void reusesBufferForSameLength() {
+
+        ChunkBufferPool pool = new ChunkBufferPool(182);
+
+        byte[] buffer = pool.get(20);
+
+        assertEquals(20, buffer.length);
+        assertSame(buffer, pool.get(20));
+        assertNotSame(buffer, pool.get(8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLengthAboveMax() {
+        new ChunkBufferPool(20).get(21);
+    }
+
+    /**
+     * measure memory allocated by the test thread while batches are written one credit at a time : each chunk goes
+     * through flow control deferral, credit release and queue resume. Writing more chunks must not allocate more
+     */
+    @Test
+    public void chunkPathDoesNotAllocate() {
+
+        GattTimer timer = new GattTimer();
+        WriteFlowControl flowControl = new WriteFlowControl(timer);
+        GattQueue queue = new GattQueue(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        ChunkBufferPool pool = new ChunkBufferPool(CHUNK_SIZE + 1);
+        TraceRing traceRing = new TraceRing(64);
+        byte[] data = new byte[CHUNK_SIZE * LARGE_BATCH + 7];
+        CountingListener listener = new CountingListener();
+
+        //first batches allocate buffers and the flow control deadline, and get the chunk path compiled
+        for (int i = 0; i < 10; i++) {
+            writeBatch(queue, flowControl, pool, traceRing, data, LARGE_BATCH, listener);
+        }
+        long small = writeBatch(queue, flowControl, pool, traceRing, data, SMALL_BATCH, listener);
+        long large = writeBatch(queue, flowControl, pool, traceRing, data, LARGE_BATCH, listener);
+
+        timer.stop();
+
+        assertEquals(LARGE_BATCH, listener.chunkCount);
+        assertTrue("allocated " + (large - small) + " bytes for " + (LARGE_BATCH - SMALL_BATCH) + " more chunks",
+                large - small < LARGE_BATCH - SMALL_BATCH);
+    }
+
+    /**
+     * write a batch releasing a credit each time the batch waits for one
+     *
+     * @return bytes allocated by this thread
+     */
+    private long writeBatch(GattQueue queue, WriteFlowControl flowControl, ChunkBufferPool pool, TraceRing traceRing,
+                            byte[] data, int chunkCount, CountingListener listener) {
+
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        listener.reset();
+
+        long before = bean.getThreadAllocatedBytes(threadId);
+
+        queue.submit(new CountingBatch(data, chunkCount * CHUNK_SIZE, flowControl, pool, traceRing, listener));
+
+        while (!listener.done) {
+            flowControl.release();
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertFalse(listener.failed);
+        return allocated;
+    }
+
+    private static class CountingBatch extends BatchWriteTask {
+
+        CountingBatch(byte[] data, int length, WriteFlowControl flowControl, ChunkBufferPool pool, TraceRing traceRing,
+                      IBatchListener listener) {
+            super(null, UUID.randomUUID(), data, 0, length, CHUNK_SIZE, 0, flowControl, pool, traceRing, listener);
+        }
+
+        @Override
+        protected boolean prepare() {
+            return true;
+        }
+
+        @Override
+        protected boolean issueWrite(byte[] chunk) {
+            return true;
+        }
+    }
+
+    private static class CountingListener implements IBatchListener {
+
+        private volatile boolean done;
+
+        private boolean failed;
+
+        private int chunkCount;
+
+        void reset() {
+            done = false;
+            failed = false;
+            chunkCount = 0;
+        }
+
+        @Override
+        public boolean onChunkWritten(int index, int offset, int length) {
+            chunkCount++;
+            return true;
+        }
+
+        @Override
+        public void onBatchComplete(int chunkCount) {
+            done = true;
+        }
+
+        @Override
+        public void onBatchFailure(int chunkCount) {
+            failed = true;
+            done = true;
+        }
+    }
+}
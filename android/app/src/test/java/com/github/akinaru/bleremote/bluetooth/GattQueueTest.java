@@ -0,0 +1,154 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * GATT operation queue tests
+ *
+ * @author Bertrand Martel
+ */
+public class GattQueueTest {
+
+    private final static UUID BITMAP = UUID.randomUUID();
+
+    private final static UUID TRANSMIT_STATUS = UUID.randomUUID();
+
+    private GattTimer timer;
+
+    private WriteFlowControl flowControl;
+
+    private GattQueue queue;
+
+    /**
+     * writes in the order they reach the stack
+     */
+    private final List<String> writes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        timer = new GattTimer();
+        flowControl = new WriteFlowControl(timer);
+        queue = new GattQueue(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void deferredWriteIsNotOvertaken() {
+
+        queue.submit(new ChunkTask(3));
+
+        //window end is queued while the window is waiting for write credits
+        queue.submit(new GattTask(null, TRANSMIT_STATUS, new byte[]{0}, null) {
+            @Override
+            public void run() {
+                writes.add("end");
+                setAwaitingCallback();
+            }
+        });
+        assertEquals(Arrays.asList("chunk0"), writes);
+
+        //write callbacks
+        for (int i = 0; i < 3; i++) {
+            flowControl.release();
+        }
+        assertEquals(Arrays.asList("chunk0", "chunk1", "chunk2", "end"), writes);
+        timer.stop();
+    }
+
+    @Test
+    public void higherPriorityRunsFirst() {
+
+        GattTask blocking = new GattTask(null, TRANSMIT_STATUS, new byte[]{0}, null) {
+            @Override
+            public void run() {
+                writes.add("first");
+                setAwaitingCallback();
+            }
+        };
+        queue.submit(blocking);
+        queue.submit(new RecordTask("normal", GattPriority.NORMAL));
+        queue.submit(new RecordTask("high", GattPriority.HIGH));
+
+        blocking.complete(0);
+
+        assertEquals(Arrays.asList("first", "high", "normal"), writes);
+        timer.stop();
+    }
+
+    /**
+     * write without response of successive chunks, deferred when no credit is available
+     */
+    private class ChunkTask extends GattTask {
+
+        private final int count;
+
+        private int index = 0;
+
+        ChunkTask(int count) {
+            super(null, BITMAP, new byte[0], null);
+            this.count = count;
+        }
+
+        @Override
+        public void run() {
+            while (index < count) {
+                if (!flowControl.tryAcquire()) {
+                    flowControl.awaitCredit(this);
+                    return;
+                }
+                writes.add("chunk" + index++);
+            }
+        }
+    }
+
+    private class RecordTask extends GattTask {
+
+        private final String name;
+
+        RecordTask(String name, GattPriority priority) {
+            super(null, BITMAP, new byte[0], null, priority);
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            writes.add(name);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hashed wheel timer tests
+ *
+ * @author Bertrand Martel
+ */
+public class GattTimerTest {
+
+    @Test
+    public void runsTimeoutAfterDelay() throws InterruptedException {
+
+        GattTimer timer = new GattTimer();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 50);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        timer.stop();
+    }
+
+    @Test
+    public void cancelledTimeoutIsNotRun() throws InterruptedException {
+
+        GattTimer timer = new GattTimer();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        GattTimer.Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 50);
+
+        assertTrue(timeout.cancel());
+        assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(timeout.isExpired());
+        timer.stop();
+    }
+
+    @Test
+    public void parksWhenEmptyAndWakesOnSchedule() throws InterruptedException {
+
+        GattTimer timer = new GattTimer();
+        final CountDownLatch first = new CountDownLatch(1);
+
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                first.countDown();
+            }
+        }, 10);
+        assertTrue(first.await(1, TimeUnit.SECONDS));
+
+        Thread worker = findWorker();
+        long limit = System.currentTimeMillis() + 1000;
+        while (worker.getState() != Thread.State.WAITING && System.currentTimeMillis() < limit) {
+            Thread.sleep(10);
+        }
+        //no timer tick while nothing is pending
+        assertEquals(Thread.State.WAITING, worker.getState());
+
+        final CountDownLatch second = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                second.countDown();
+            }
+        }, 20);
+        assertTrue(second.await(1, TimeUnit.SECONDS));
+
+        timer.stop();
+        worker.join(1000);
+        assertFalse(worker.isAlive());
+    }
+
+    private Thread findWorker() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(GattTimer.class.getSimpleName()) && thread.isAlive()) {
+                return thread;
+            }
+        }
+        throw new AssertionError("timer thread not found");
+    }
+}
@@ -0,0 +1,124 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scan record parsing tests
+ *
+ * @author Bertrand Martel
+ */
+public class ScanRecordUtilsTest {
+
+    private final static UUID DISPLAY_SERVICE = UUID.fromString("00001523-1212-efde-1523-785feabcd123");
+
+    private final static UUID HID_SERVICE = UUID.fromString("00001812-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * display service UUID in little endian order, as sent over the air
+     */
+    private final static byte[] DISPLAY_SERVICE_LE = new byte[]{
+            (byte) 0x23, (byte) 0xd1, (byte) 0xbc, (byte) 0xea, (byte) 0x5f, (byte) 0x78, (byte) 0x23, (byte) 0x15,
+            (byte) 0xde, (byte) 0xef, (byte) 0x12, (byte) 0x12, (byte) 0x23, (byte) 0x15, (byte) 0x00, (byte) 0x00
+    };
+
+    /**
+     * advertising data of the display : flags, complete 16 bit UUID list (HID), appearance, name
+     */
+    private final static byte[] ADVERTISING_DATA = new byte[]{
+            0x02, 0x01, 0x05,
+            0x03, 0x03, 0x12, 0x18,
+            0x03, 0x19, (byte) 0xc1, 0x03,
+            0x05, 0x09, 'B', 'l', 'e', 'D'
+    };
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static byte[] uuid128Structure(int type) {
+        return concat(new byte[]{17, (byte) type}, DISPLAY_SERVICE_LE);
+    }
+
+    @Test
+    public void findsUuid128AfterFlags() {
+        byte[] record = concat(new byte[]{0x02, 0x01, 0x05}, uuid128Structure(0x07));
+        assertTrue(ScanRecordUtils.hasServiceUuid(record, DISPLAY_SERVICE));
+    }
+
+    @Test
+    public void findsUuid128InScanResponse() {
+        //advertising data followed by scan response, zero padded as reported by API 19
+        byte[] record = concat(ADVERTISING_DATA, uuid128Structure(0x07), new byte[10]);
+        assertTrue(ScanRecordUtils.hasServiceUuid(record, DISPLAY_SERVICE));
+    }
+
+    @Test
+    public void findsIncompleteUuid128List() {
+        byte[] record = concat(ADVERTISING_DATA, uuid128Structure(0x06));
+        assertTrue(ScanRecordUtils.hasServiceUuid(record, DISPLAY_SERVICE));
+    }
+
+    @Test
+    public void findsUuid16Alias() {
+        assertTrue(ScanRecordUtils.hasServiceUuid(ADVERTISING_DATA, HID_SERVICE));
+    }
+
+    @Test
+    public void ignoresOtherDevices() {
+        assertFalse(ScanRecordUtils.hasServiceUuid(ADVERTISING_DATA, DISPLAY_SERVICE));
+    }
+
+    @Test
+    public void ignoresUuidInOtherStructureType() {
+        //same bytes carried as manufacturer specific data
+        byte[] record = concat(ADVERTISING_DATA, uuid128Structure(0xFF));
+        assertFalse(ScanRecordUtils.hasServiceUuid(record, DISPLAY_SERVICE));
+    }
+
+    @Test
+    public void stopsOnTruncatedStructure() {
+        byte[] record = concat(new byte[]{0x02, 0x01, 0x05}, uuid128Structure(0x07));
+        byte[] truncated = new byte[record.length - 1];
+        System.arraycopy(record, 0, truncated, 0, truncated.length);
+        assertFalse(ScanRecordUtils.hasServiceUuid(truncated, DISPLAY_SERVICE));
+        assertFalse(ScanRecordUtils.hasServiceUuid(null, DISPLAY_SERVICE));
+    }
+}
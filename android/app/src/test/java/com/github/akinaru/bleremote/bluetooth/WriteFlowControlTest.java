@@ -0,0 +1,144 @@
+/********************************************************************************
+ * The MIT License (MIT)                                                        *
+ * <p/>                                                                         *
+ * Copyright (c) 2016 Bertrand Martel                                           *
+ * <p/>                                                                         *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy *
+ * of this software and associated documentation files (the "Software"), to deal*
+ * in the Software without restriction, including without limitation the rights *
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell    *
+ * copies of the Software, and to permit persons to whom the Software is        *
+ * furnished to do so, subject to the following conditions:                     *
+ * <p/>                                                                         *
+ * The above copyright notice and this permission notice shall be included in   *
+ * all copies or substantial portions of the Software.                          *
+ * <p/>                                                                         *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR   *
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,     *
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE  *
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER       *
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,*
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN    *
+ * THE SOFTWARE.                                                                *
+ */
+package com.github.akinaru.bleremote.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Write credit tests : tasks without credit are deferred and resumed by the flow control
+ *
+ * @author Bertrand Martel
+ */
+public class WriteFlowControlTest {
+
+    private GattTimer timer;
+
+    private WriteFlowControl flowControl;
+
+    private GattQueue queue;
+
+    @Before
+    public void setUp() {
+        timer = new GattTimer();
+        flowControl = new WriteFlowControl(timer);
+        queue = new GattQueue(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void deferredTaskIsResumedOnRelease() throws InterruptedException {
+
+        assertTrue(flowControl.tryAcquire());
+
+        CreditTask task = new CreditTask();
+        queue.submit(task);
+
+        //no credit : deferred
+        assertEquals(1, task.acquired.getCount());
+
+        flowControl.release();
+        assertTrue(task.acquired.await(0, TimeUnit.MILLISECONDS));
+        assertFalse(flowControl.isFallback());
+        timer.stop();
+    }
+
+    @Test
+    public void fallsBackWhenNoCallbackIsReceived() throws InterruptedException {
+
+        assertTrue(flowControl.tryAcquire());
+
+        CreditTask task = new CreditTask();
+        queue.submit(task);
+
+        //credit considered released by the callback timeout
+        assertTrue(task.acquired.await(1, TimeUnit.SECONDS));
+        assertTrue(flowControl.isFallback());
+        timer.stop();
+    }
+
+    @Test
+    public void intervalDefersUntilElapsed() throws InterruptedException {
+
+        flowControl.setMaxCredits(4);
+        flowControl.setInterval(50);
+
+        assertTrue(flowControl.tryAcquire());
+
+        long start = System.nanoTime();
+
+        CreditTask task = new CreditTask();
+        queue.submit(task);
+
+        assertTrue(task.acquired.await(1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+        assertFalse(flowControl.isFallback());
+        timer.stop();
+    }
+
+    @Test
+    public void taskWithCreditIsNotDeferred() throws InterruptedException {
+
+        CreditTask task = new CreditTask();
+        queue.submit(task);
+
+        assertTrue(task.acquired.await(0, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.size());
+        timer.stop();
+    }
+
+    /**
+     * task taking a write credit, deferred until one is available
+     */
+    private class CreditTask extends GattTask {
+
+        private final CountDownLatch acquired = new CountDownLatch(1);
+
+        CreditTask() {
+            super(null, UUID.randomUUID(), new byte[0], null);
+        }
+
+        @Override
+        public void run() {
+            if (flowControl.tryAcquire()) {
+                acquired.countDown();
+            } else {
+                flowControl.awaitCredit(this);
+            }
+        }
+    }
+}
@@ -52,13 +52,26 @@
 #define DISPLAYS_UUID_BITMAP          0x1802
 #define DISPLAYS_UUID_TRANSMIT_STATUS 0x1803
 
+// transmit status value : status byte followed by optional window size (number of frames before TRANSMIT_OK)
+// or by the bitmap of missing frames for a TRANSMIT_NACK notification (128 frames max)
+#define TRANSMIT_STATUS_MAX_LENGTH    17
+
+// bitmap frame max length : ATT payload for default MTU (23 - 3 bytes ATT header)
+#define BITMAP_FRAME_MAX_LENGTH       20
+
+// bitmap frame length used by clients that don't send it in the length frame
+#define BITMAP_FRAME_LEGACY_LENGTH    18
+
+// length frame flag (4th byte) : each bitmap frame starts with its 1 byte sequence number in the window
+#define BITMAP_FLAG_SEQUENCE          0x01
+
 // Forward declaration of the ble_displays_t type.
 typedef struct ble_displays_s ble_displays_t;
 
 typedef void (*ble_displays_led_write_handler_t) (ble_displays_t * p_dis, uint8_t new_state);
 typedef void (*ble_displays_full_color_write_handler_t) (ble_displays_t * p_dis, uint8_t red, uint8_t green, uint8_t blue);
 typedef void (*ble_displays_bitmap_write_handler_t) (ble_displays_t * p_dis, ble_gatts_evt_write_t * p_evt_write);
-typedef void (*ble_displays_transmit_status_write_handler_t) (ble_displays_t * p_dis, uint8_t transmit_status);
+typedef void (*ble_displays_transmit_status_write_handler_t) (ble_displays_t * p_dis, ble_gatts_evt_write_t * p_evt_write);
 
 typedef struct
 {
@@ -119,6 +132,10 @@ uint32_t ble_displays_on_button_change(ble_displays_t * p_dis, uint8_t button_st
 
 uint32_t ble_displays_on_transmit_status_change(ble_displays_t * p_dis, uint8_t transmit_status, ble_gatts_char_handles_t *characteristic_handler);
 
+/**@brief Function for sending a transmit status notification with data following the status byte.
+ */
+uint32_t ble_displays_on_transmit_status_data(ble_displays_t * p_dis, uint8_t * p_data, uint16_t len, ble_gatts_char_handles_t *characteristic_handler);
+
 #endif // BLE_DISPLAYS_H__
 
 /** @} */
\ No newline at end of file
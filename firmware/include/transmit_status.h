@@ -34,4 +34,6 @@ E(TRANSMIT_COMPLETE  , 0x03)
 E(TRANSMIT_ERROR     , 0x04)
 E(TRANSMIT_CANCEL    , 0x05)
 E(TRANSMIT_START     , 0x06)
+E(TRANSMIT_WINDOW_END, 0x07)
+E(TRANSMIT_NACK      , 0x08)
 #undef E
\ No newline at end of file
@@ -100,7 +100,7 @@ static void on_write(ble_displays_t * p_dis, ble_evt_t * p_ble_evt)
              (p_evt_write->len > 0) &&
              (p_dis->transmit_status_handler != NULL))
     {
-        p_dis->transmit_status_handler(p_dis, p_evt_write->data[0]);
+        p_dis->transmit_status_handler(p_dis, p_evt_write);
     }
 }
 
@@ -169,7 +169,7 @@ static uint32_t transmit_status_char_add(ble_displays_t * p_dis, const ble_displ
     attr_md.vloc       = BLE_GATTS_VLOC_STACK;
     attr_md.rd_auth    = 0;
     attr_md.wr_auth    = 0;
-    attr_md.vlen       = 0;
+    attr_md.vlen       = 1;
 
     memset(&attr_char_value, 0, sizeof(attr_char_value));
 
@@ -177,7 +177,7 @@ static uint32_t transmit_status_char_add(ble_displays_t * p_dis, const ble_displ
     attr_char_value.p_attr_md    = &attr_md;
     attr_char_value.init_len     = sizeof(uint8_t);
     attr_char_value.init_offs    = 0;
-    attr_char_value.max_len      = sizeof(uint8_t);
+    attr_char_value.max_len      = TRANSMIT_STATUS_MAX_LENGTH;
     attr_char_value.p_value      = NULL;
 
     return sd_ble_gatts_characteristic_add(p_dis->service_handle, &char_md,
@@ -403,7 +403,7 @@ uint32_t ble_displays_init(ble_displays_t * p_dis, const ble_displays_init_t * p
     {
         return err_code;
     }
-    err_code = display_char_add(p_dis, p_dis_init, DISPLAYS_UUID_BITMAP, &p_dis->display_bitmap_handles, sizeof(uint8_t), 18 );
+    err_code = display_char_add(p_dis, p_dis_init, DISPLAYS_UUID_BITMAP, &p_dis->display_bitmap_handles, sizeof(uint8_t), BITMAP_FRAME_MAX_LENGTH );
     if (err_code != NRF_SUCCESS)
     {
         return err_code;
@@ -441,5 +441,18 @@ uint32_t ble_displays_on_transmit_status_change(ble_displays_t * p_dis, uint8_t
     params.p_data = &transmit_status;
     params.p_len = &len;
 
+    return sd_ble_gatts_hvx(p_dis->conn_handle, &params);
+}
+
+uint32_t ble_displays_on_transmit_status_data(ble_displays_t * p_dis, uint8_t * p_data, uint16_t len, ble_gatts_char_handles_t *characteristic_handler)
+{
+    ble_gatts_hvx_params_t params;
+
+    memset(&params, 0, sizeof(params));
+    params.type = BLE_GATT_HVX_NOTIFICATION;
+    params.handle = characteristic_handler->value_handle;
+    params.p_data = p_data;
+    params.p_len = &len;
+
     return sd_ble_gatts_hvx(p_dis->conn_handle, &params);
 }
\ No newline at end of file
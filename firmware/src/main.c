@@ -260,6 +260,8 @@ static bool                              m_consumer_pressed = false;
 
 static ble_uuid_t m_adv_uuids[] = {{BLE_UUID_HUMAN_INTERFACE_DEVICE_SERVICE, BLE_UUID_TYPE_BLE}};
 
+static ble_uuid_t m_sr_uuids[1];                                                        /**< Display service UUID sent in scan response so that centrals can filter scan on it. */
+
 static ble_displays_t                        m_dis;
 
 
@@ -284,6 +286,40 @@ static volatile uint16_t bitmap_count_iteration = 0;
 
 #define BITMAP_CHUNK_SIZE 128
 
+//number of frames before sending TRANSMIT_OK, set by TRANSMIT_START / TRANSMITTING (max BITMAP_CHUNK_SIZE)
+static volatile uint16_t window_length = BITMAP_CHUNK_SIZE;
+
+//size of a bitmap frame, set by the optional third byte of the length frame (max BITMAP_FRAME_MAX_LENGTH)
+static volatile uint16_t frame_size = BITMAP_FRAME_LEGACY_LENGTH;
+
+//frames start with a 1 byte sequence number in the window, set by BITMAP_FLAG_SEQUENCE in the length frame
+static volatile bool seq_header = false;
+
+//bitmap bytes in a frame (frame_size without sequence number)
+static volatile uint16_t payload_size = BITMAP_FRAME_LEGACY_LENGTH;
+
+//image index of the first frame of the current window (sequence number mode)
+static uint32_t window_base = 0;
+
+//number of frames in the current window (sequence number mode)
+static uint16_t window_frames = 0;
+
+//number of distinct frames received in the current window (sequence number mode)
+static uint16_t window_received_count = 0;
+
+//number of bitmap bytes received in the current window (sequence number mode)
+static uint32_t window_bytes = 0;
+
+//one bit per received frame in the current window (sequence number mode)
+static uint8_t window_received[BITMAP_CHUNK_SIZE / 8];
+
+//hash of the bitmap being uploaded sent by client in TRANSMIT_START, used to accept resuming an interrupted upload
+static uint32_t upload_hash = 0;
+
+static void bitmap_window_open();
+static void bitmap_window_end();
+static void dispatch_transmit_status(uint8_t transmit_status);
+
 static uint8_t m_caps_on_key_scan_str[] =                                                /**< Key pattern to be sent when the output report has been written with the CAPS LOCK bit set. */
 {
     0x06, /* Key C */
@@ -647,12 +683,90 @@ static void full_color_handler(ble_displays_t * p_dis, uint8_t red, uint8_t gree
     fillScreen(data);
 }
 
-static void transmit_status_handler(ble_displays_t * p_dis, uint8_t transmit_status) {
+static void transmit_status_handler(ble_displays_t * p_dis, ble_gatts_evt_write_t * p_evt_write) {
+
+    uint8_t transmit_status = p_evt_write->data[0];
+
+    if ((transmit_status == TRANSMITTING) || (transmit_status == TRANSMIT_START)) {
+
+        if (p_evt_write->len > 1) {
+            window_length = (p_evt_write->data[1] < 2) ? 2 : p_evt_write->data[1];
+            if (window_length > BITMAP_CHUNK_SIZE) {
+                window_length = BITMAP_CHUNK_SIZE;
+            }
+        }
+        else if (transmit_status == TRANSMIT_START) {
+            window_length = BITMAP_CHUNK_SIZE;
+        }
+    }
+
+    if (transmit_status == TRANSMIT_START) {
+
+        uint16_t resume_offset = 0;
+        uint32_t hash = 0;
+
+        if (p_evt_write->len >= 8) {
+            resume_offset = (p_evt_write->data[2] << 8) + p_evt_write->data[3];
+            hash = (p_evt_write->data[4] << 24) + (p_evt_write->data[5] << 16) + (p_evt_write->data[6] << 8) + p_evt_write->data[7];
+        }
+
+        if (resume_offset != 0 && transmit_init && seq_header && hash == upload_hash && image_index < bitmap_length) {
+
+            //same bitmap as the interrupted upload : go on from the last committed window
+            SEGGER_RTT_printf(0, "\x1B[32mresuming upload at %d\x1B[0m\n", image_index);
+
+            transmit_state = TRANSMITTING;
+            bitmap_window_open();
+
+            uint8_t resume[3] = {TRANSMIT_OK, (image_index >> 8) & 0xFF, image_index & 0xFF};
+
+            uint32_t err_code = ble_displays_on_transmit_status_data(&m_dis, resume, sizeof(resume), &m_dis.transmit_status_handles);
+            if (err_code != NRF_SUCCESS &&
+                    err_code != BLE_ERROR_INVALID_CONN_HANDLE &&
+                    err_code != NRF_ERROR_INVALID_STATE)
+            {
+                APP_ERROR_CHECK(err_code);
+            }
+            return;
+        }
+
+        if (transmit_init) {
+
+            //drop interrupted upload. Flash clear is queued before any store of the new upload
+            SEGGER_RTT_printf(0, "\x1B[32mdropping interrupted upload\x1B[0m\n");
+
+            transmit_init = false;
+            expecting_length = 0;
+            image_index = 0;
+            frame_offset = 0;
+            window_frames = 0;
+            pstorage_clear(&pstorage_handle, PAGE_NUM * PAGE_CHUNK);
+        }
+
+        upload_hash = hash;
+
+        if (resume_offset != 0) {
+            //resume refused : client will send the whole bitmap
+            transmit_state = TRANSMIT_START;
+            dispatch_transmit_status(TRANSMIT_START);
+            return;
+        }
+    }
 
     if ( transmit_status == TRANSMITTING) {
         if (transmit_state != TRANSMIT_CANCEL) {
             transmit_state = TRANSMITTING;
+            if (transmit_init && seq_header) {
+                bitmap_window_open();
+            }
+        }
+    }
+    else if (transmit_status == TRANSMIT_WINDOW_END) {
+        //client has sent all frames of the window : acknowledge it or request missing frames
+        if (transmit_state == TRANSMITTING || transmit_state == TRANSMIT_START) {
+            bitmap_window_end();
         }
+        return;
     }
     else {
         transmit_state = transmit_status;
@@ -685,6 +799,175 @@ void clean_complete() {
     dispatch_transmit_status(TRANSMIT_COMPLETE);
 }
 
+/**@brief Function for starting a window of frames in sequence number mode.
+ *
+ * @details A window never holds more than PAGE_CHUNK bytes so that its frames can be placed directly in the two page
+ *          buffers (current page and next page) whatever order they are received in.
+ */
+static void bitmap_window_open() {
+
+    uint32_t remaining = (bitmap_length - image_index + payload_size - 1) / payload_size;
+
+    window_frames = window_length;
+
+    if (window_frames > (PAGE_CHUNK / payload_size)) {
+        window_frames = PAGE_CHUNK / payload_size;
+    }
+    if (window_frames > remaining) {
+        window_frames = remaining;
+    }
+    window_base = image_index;
+    window_bytes = 0;
+    window_received_count = 0;
+    memset(window_received, 0, sizeof(window_received));
+
+    SEGGER_RTT_printf(0, "\x1B[32mopen window of %d frames at %d\x1B[0m\n", window_frames, window_base);
+}
+
+/**@brief Function for placing a frame of the current window in the page buffers (sequence number mode).
+ */
+static void bitmap_window_frame(ble_gatts_evt_write_t * p_evt_write) {
+
+    if (p_evt_write->len < 2) {
+        return;
+    }
+
+    uint8_t seq = p_evt_write->data[0];
+    uint16_t len = p_evt_write->len - 1;
+
+    if (seq >= window_frames || (window_received[seq >> 3] & (1 << (seq & 0x07)))) {
+        SEGGER_RTT_printf(0, "\x1B[32mdropping frame %d\x1B[0m\n", seq);
+        return;
+    }
+
+    uint32_t offset = window_base + seq * payload_size;
+
+    if (len > payload_size || (offset + len) > bitmap_length) {
+        SEGGER_RTT_printf(0, "\x1B[32minvalid frame %d of length %d\x1B[0m\n", seq, len);
+        return;
+    }
+
+    //position relative to the page being filled
+    uint32_t position = offset - block_offset * PAGE_CHUNK;
+
+    for (uint16_t i = 0; i < len; i++, position++) {
+
+        if (position < PAGE_CHUNK) {
+            if (!image_part_select) {
+                image_part[position] = p_evt_write->data[i + 1];
+            }
+            else {
+                image_part2[position] = p_evt_write->data[i + 1];
+            }
+        }
+        else {
+            if (!image_part_select) {
+                image_part2[position - PAGE_CHUNK] = p_evt_write->data[i + 1];
+            }
+            else {
+                image_part[position - PAGE_CHUNK] = p_evt_write->data[i + 1];
+            }
+        }
+    }
+
+    window_received[seq >> 3] |= (1 << (seq & 0x07));
+    window_received_count++;
+    window_bytes += len;
+}
+
+/**@brief Function for ending a window (sequence number mode) : commit it and send TRANSMIT_OK or send a TRANSMIT_NACK
+ *        with a bitmap of missing frames.
+ */
+static void bitmap_window_end() {
+
+    if (!transmit_init || !seq_header) {
+        return;
+    }
+
+    if (window_received_count != window_frames) {
+
+        uint8_t nack[1 + sizeof(window_received)];
+        uint16_t bitmap_bytes = (window_frames + 7) / 8;
+
+        nack[0] = TRANSMIT_NACK;
+
+        for (uint16_t i = 0; i < bitmap_bytes; i++) {
+            nack[i + 1] = ~window_received[i];
+        }
+        if ((window_frames & 0x07) != 0) {
+            nack[bitmap_bytes] &= (1 << (window_frames & 0x07)) - 1;
+        }
+
+        SEGGER_RTT_printf(0, "\x1B[32mmissing %d frames in window\x1B[0m\n", window_frames - window_received_count);
+
+        uint32_t err_code = ble_displays_on_transmit_status_data(&m_dis, nack, 1 + bitmap_bytes, &m_dis.transmit_status_handles);
+        if (err_code != NRF_SUCCESS &&
+                err_code != BLE_ERROR_INVALID_CONN_HANDLE &&
+                err_code != NRF_ERROR_INVALID_STATE)
+        {
+            APP_ERROR_CHECK(err_code);
+        }
+        return;
+    }
+
+    image_index = window_base + window_bytes;
+    bitmap_count_iteration += window_frames;
+    window_frames = 0;
+
+    uint32_t end = image_index - block_offset * PAGE_CHUNK;
+
+    if (end > PAGE_CHUNK) {
+
+        //current page is full
+        frame_offset = PAGE_CHUNK;
+
+        if (store_data_pstorage() != NRF_SUCCESS) {
+            SEGGER_RTT_printf(0, "\x1B[32mpstorage_store FAILURE\x1B[0m\n");
+        }
+        frame_offset = end - PAGE_CHUNK;
+    }
+    else {
+        frame_offset = end;
+    }
+
+    if (image_index == bitmap_length) {
+
+        //set flags for last chunk
+        final_storage_bitmap_flag = 1;
+
+        if (!image_part_select) {
+            last_value = image_part[frame_offset - 1];
+        }
+        else {
+            last_value = image_part2[frame_offset - 1];
+        }
+
+        block_max = block_offset;
+
+        //store last frames in pstorage
+        if (store_data_pstorage() != NRF_SUCCESS) {
+            SEGGER_RTT_printf(0, "\x1B[32mpstorage_store FAILURE\x1B[0m\n");
+        }
+        frame_offset = 0;
+    }
+
+    SEGGER_RTT_printf(0, "\x1B[32mwindow complete. transmitting OK %d & %d\x1B[0m\n", image_index, bitmap_length);
+    transmit_state = TRANSMIT_OK;
+
+    //send TRANSMIT_OK
+    dispatch_transmit_status(TRANSMIT_OK);
+
+    if (image_index == bitmap_length) {
+
+        SEGGER_RTT_printf(0, "\x1B[32mReceived ALL frames.\x1B[0m\n");
+
+        free(image_part);
+        image_part = 0;
+        free(image_part2);
+        image_part2 = 0;
+    }
+}
+
 static void bitmap_handler(ble_displays_t * p_dis, ble_gatts_evt_write_t * p_evt_write) {
 
     SEGGER_RTT_printf(0, "\x1B[32mbitmap handler\x1B[0m\n");
@@ -693,10 +976,20 @@ static void bitmap_handler(ble_displays_t * p_dis, ble_gatts_evt_write_t * p_evt
 
         if (!transmit_init) {
 
-            if (p_evt_write->len == 2) {
+            if (p_evt_write->len >= 2 && p_evt_write->len <= 4) {
 
                 transmit_init = true;
                 bitmap_length = (p_evt_write->data[0] << 8) + p_evt_write->data[1];
+
+                frame_size = BITMAP_FRAME_LEGACY_LENGTH;
+                if (p_evt_write->len >= 3 && p_evt_write->data[2] != 0) {
+                    frame_size = p_evt_write->data[2];
+                    if (frame_size > BITMAP_FRAME_MAX_LENGTH) {
+                        frame_size = BITMAP_FRAME_MAX_LENGTH;
+                    }
+                }
+                seq_header = (p_evt_write->len == 4) && (p_evt_write->data[3] & BITMAP_FLAG_SEQUENCE) && (frame_size > 1);
+                payload_size = seq_header ? (frame_size - 1) : frame_size;
                 block_offset = 0;
                 bitmap_offset = 0;
                 bitmap_count_iteration = 0;
@@ -711,23 +1004,32 @@ static void bitmap_handler(ble_displays_t * p_dis, ble_gatts_evt_write_t * p_evt
                 image_part2 = NULL;
                 image_part2 = (uint8_t*)malloc(sizeof(uint8_t) * PAGE_CHUNK);
 
-                bitmap_stop_iteration = (bitmap_length / 18) + 1;
+                bitmap_stop_iteration = (bitmap_length / payload_size) + 1;
 
                 image_index = 0;
 
-                expecting_length = 127;
-                SEGGER_RTT_printf(0, "\x1B[32mreceive total length : %d\x1B[0m\n", bitmap_length);
+                //length frame is part of the first window
+                expecting_length = window_length - 1;
+                SEGGER_RTT_printf(0, "\x1B[32mreceive total length : %d with frame size : %d\x1B[0m\n", bitmap_length, frame_size);
+
+                if (seq_header) {
+                    //length frame is not part of a window in sequence number mode
+                    bitmap_window_open();
+                }
             }
             else {
-                SEGGER_RTT_printf(0, "\x1B[32mError expecting data of size 2 (bitmap length)\x1B[0m\n");
+                SEGGER_RTT_printf(0, "\x1B[32mError expecting data of size 2 to 4 (bitmap length, frame size, flags)\x1B[0m\n");
                 dispatch_transmit_status(TRANSMIT_ERROR);
             }
         }
+        else if (seq_header) {
+            bitmap_window_frame(p_evt_write);
+        }
         else {
 
             if (expecting_length == 0) {
                 uint32_t subs = bitmap_stop_iteration - bitmap_count_iteration;
-                expecting_length = (subs >= BITMAP_CHUNK_SIZE) ? BITMAP_CHUNK_SIZE : subs;
+                expecting_length = (subs >= window_length) ? window_length : subs;
                 SEGGER_RTT_printf(0, "\x1B[32mreinitializing expecting length to %d\x1B[0m\n", expecting_length);
             }
 
@@ -814,7 +1116,7 @@ static void bitmap_handler(ble_displays_t * p_dis, ble_gatts_evt_write_t * p_evt
 
             if (expecting_length == 0) {
 
-                SEGGER_RTT_printf(0, "\x1B[32mReceived 128 frames.transmitting OK %d & %d\x1B[0m\n", image_index, bitmap_length);
+                SEGGER_RTT_printf(0, "\x1B[32mReceived %d frames.transmitting OK %d & %d\x1B[0m\n", window_length, image_index, bitmap_length);
                 transmit_state = TRANSMIT_OK;
 
                 //send TRANSMIT_OK
@@ -1923,6 +2225,7 @@ static void advertising_init(void)
     uint32_t       err_code;
     uint8_t        adv_flags;
     ble_advdata_t  advdata;
+    ble_advdata_t  srdata;
 
     // Build and set advertising data
     memset(&advdata, 0, sizeof(advdata));
@@ -1934,6 +2237,14 @@ static void advertising_init(void)
     advdata.uuids_complete.uuid_cnt = sizeof(m_adv_uuids) / sizeof(m_adv_uuids[0]);
     advdata.uuids_complete.p_uuids  = m_adv_uuids;
 
+    // 128 bit display service UUID doesn't fit in advertising data with full name : send it in scan response
+    m_sr_uuids[0].uuid = DISPLAYS_UUID_SERVICE_BUTTON;
+    m_sr_uuids[0].type = m_dis.uuid_type;
+
+    memset(&srdata, 0, sizeof(srdata));
+    srdata.uuids_complete.uuid_cnt = sizeof(m_sr_uuids) / sizeof(m_sr_uuids[0]);
+    srdata.uuids_complete.p_uuids  = m_sr_uuids;
+
     ble_adv_modes_config_t options =
     {
         BLE_ADV_WHITELIST_DISABLED,
@@ -1943,7 +2254,7 @@ static void advertising_init(void)
         BLE_ADV_SLOW_ENABLED, APP_ADV_SLOW_INTERVAL, APP_ADV_SLOW_TIMEOUT
     };
 
-    err_code = ble_advertising_init(&advdata, NULL, &options, on_adv_evt, ble_advertising_error_handler);
+    err_code = ble_advertising_init(&advdata, &srdata, &options, on_adv_evt, ble_advertising_error_handler);
     APP_ERROR_CHECK(err_code);
 }
 
@@ -2112,8 +2423,8 @@ int main(void)
     device_manager_init(erase_bonds);
 
     gap_params_init();
-    advertising_init();
     services_init();
+    advertising_init();
 
     sensor_simulator_init();
     conn_params_init();